@@ -0,0 +1,276 @@
+package org.laboration3.Interceptor;
+
+import jakarta.annotation.Priority;
+import jakarta.ws.rs.Priorities;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.ext.Provider;
+import jakarta.ws.rs.ext.RuntimeDelegate;
+import jakarta.ws.rs.ext.WriterInterceptor;
+import jakarta.ws.rs.ext.WriterInterceptorContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+// gzip or deflate for responses larger than THRESHOLD_PROPERTY bytes, whichever the client's Accept-Encoding
+// prefers. The first bytes are held back until the response is known to be large enough, smaller ones are
+// sent as they are. Deflaters are reused, a new one allocates about 256 KB of native memory
+@Provider
+@Priority(Priorities.ENTITY_CODER)
+public class Compression implements WriterInterceptor {
+
+    public static final String THRESHOLD_PROPERTY = "warehouse.compression.threshold";
+    private static final int THRESHOLD = Integer.getInteger(THRESHOLD_PROPERTY, 1024);
+    private static final int BUFFER_SIZE = 8192;
+
+    public enum Encoding {
+        GZIP("gzip", true), DEFLATE("deflate", false);
+
+        private final String token;
+        // gzip wraps a raw deflate stream in its own header and trailer, deflate is the zlib format
+        private final boolean nowrap;
+        private final BlockingQueue<Deflater> pool = new ArrayBlockingQueue<>(2 * Runtime.getRuntime().availableProcessors());
+
+        Encoding(String token, boolean nowrap) {
+            this.token = token;
+            this.nowrap = nowrap;
+        }
+
+        public String token() {
+            return token;
+        }
+
+        private Deflater borrow() {
+            Deflater deflater = pool.poll();
+            return deflater != null ? deflater : new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+        }
+
+        private void release(Deflater deflater) {
+            deflater.reset();
+            if (!pool.offer(deflater)) {
+                deflater.end();
+            }
+        }
+
+        private DeflaterOutputStream open(OutputStream target, Deflater deflater) throws IOException {
+            return this == GZIP ? new GzipStream(target, deflater) : new DeflaterOutputStream(target, deflater, BUFFER_SIZE);
+        }
+    }
+
+    @Context
+    private HttpHeaders requestHeaders;
+
+    public static int threshold() {
+        return THRESHOLD;
+    }
+
+    // The compressed bytes are a representation of their own, so they get their own ETag, like "1-a.gzip"
+    public static EntityTag tagged(EntityTag tag, Encoding encoding) {
+        return new EntityTag(tag.getValue() + "." + encoding.token(), tag.isWeak());
+    }
+
+    // The encoding with the highest q value, gzip when they are equal, null if the client takes neither
+    public static Encoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isBlank()) {
+            return null;
+        }
+        // -1 until the coding is named, then "*" doesn't apply to it
+        double gzip = -1;
+        double deflate = -1;
+        double any = 0;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase(Locale.ROOT);
+            double q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            switch (coding) {
+                case "gzip", "x-gzip" -> gzip = q;
+                case "deflate" -> deflate = q;
+                case "*" -> any = q;
+                default -> {
+                }
+            }
+        }
+        gzip = gzip < 0 ? any : gzip;
+        deflate = deflate < 0 ? any : deflate;
+        if (gzip > 0 && gzip >= deflate) {
+            return Encoding.GZIP;
+        }
+        return deflate > 0 ? Encoding.DEFLATE : null;
+    }
+
+    // For bodies that are compressed once and sent many times, like the cached listings
+    public static byte[] compress(byte[] body, Encoding encoding) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+        Deflater deflater = encoding.borrow();
+        try {
+            DeflaterOutputStream deflating = encoding.open(compressed, deflater);
+            deflating.write(body);
+            deflating.finish();
+        } finally {
+            encoding.release(deflater);
+        }
+        return compressed.toByteArray();
+    }
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        MultivaluedMap<String, Object> headers = context.getHeaders();
+        if (MediaType.SERVER_SENT_EVENTS_TYPE.isCompatible(context.getMediaType())) {
+            // Held back bytes would hold back events
+            context.proceed();
+            return;
+        }
+        if (headers.containsKey(HttpHeaders.CONTENT_ENCODING)) {
+            // Already compressed by the resource
+            headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            context.proceed();
+            return;
+        }
+
+        Encoding encoding = requestHeaders == null ? null : negotiate(requestHeaders.getHeaderString(HttpHeaders.ACCEPT_ENCODING));
+        OutputStream original = context.getOutputStream();
+        ThresholdStream threshold = new ThresholdStream(original, headers, encoding);
+        context.setOutputStream(threshold);
+        try {
+            context.proceed();
+            threshold.finish();
+        } finally {
+            context.setOutputStream(original);
+            threshold.release();
+        }
+    }
+
+    // Holds back the first THRESHOLD bytes, headers can still be changed until anything is written
+    private static final class ThresholdStream extends OutputStream {
+        private final OutputStream target;
+        private final MultivaluedMap<String, Object> headers;
+        private final Encoding encoding;
+        private final byte[] held = new byte[THRESHOLD];
+        private int count;
+        private OutputStream out;
+        private Deflater deflater;
+
+        ThresholdStream(OutputStream target, MultivaluedMap<String, Object> headers, Encoding encoding) {
+            this.target = target;
+            this.headers = headers;
+            this.encoding = encoding;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (out == null) {
+                if (count + len <= held.length) {
+                    System.arraycopy(b, off, held, count, len);
+                    count += len;
+                    return;
+                }
+                start();
+                out.write(held, 0, count);
+            }
+            out.write(b, off, len);
+        }
+
+        // Large enough to be compressed, so what is sent depends on Accept-Encoding
+        private void start() throws IOException {
+            headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            if (encoding == null) {
+                out = target;
+                return;
+            }
+            headers.putSingle(HttpHeaders.CONTENT_ENCODING, encoding.token());
+            headers.remove(HttpHeaders.CONTENT_LENGTH);
+            Object etag = headers.getFirst(HttpHeaders.ETAG);
+            if (etag != null) {
+                EntityTag tag = etag instanceof EntityTag entityTag ? entityTag
+                        : RuntimeDelegate.getInstance().createHeaderDelegate(EntityTag.class).fromString(etag.toString());
+                headers.putSingle(HttpHeaders.ETAG, tagged(tag, encoding));
+            }
+            deflater = encoding.borrow();
+            out = encoding.open(target, deflater);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        void finish() throws IOException {
+            if (out == null) {
+                target.write(held, 0, count);
+            } else if (out instanceof DeflaterOutputStream deflating) {
+                deflating.finish();
+            }
+        }
+
+        void release() {
+            if (deflater != null) {
+                encoding.release(deflater);
+                deflater = null;
+            }
+        }
+    }
+
+    // A raw deflate stream between gzip's ten byte header and a trailer with the CRC-32 and length of the input
+    private static final class GzipStream extends DeflaterOutputStream {
+        private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        private final CRC32 crc = new CRC32();
+        private boolean finished;
+
+        GzipStream(OutputStream target, Deflater deflater) throws IOException {
+            super(target, deflater, BUFFER_SIZE);
+            target.write(HEADER);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            crc.update(b, off, len);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            super.finish();
+            writeIntLittleEndian((int) crc.getValue());
+            writeIntLittleEndian((int) def.getBytesRead());
+        }
+
+        private void writeIntLittleEndian(int value) throws IOException {
+            out.write(value);
+            out.write(value >>> 8);
+            out.write(value >>> 16);
+            out.write(value >>> 24);
+        }
+    }
+}
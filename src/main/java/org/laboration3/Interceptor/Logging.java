@@ -10,15 +10,16 @@ import org.slf4j.LoggerFactory;
 @LoggingInterface
 public class Logging {
 
-    Logger logger = LoggerFactory.getLogger(Logging.class);
+    private static final Logger logger = LoggerFactory.getLogger(Logging.class);
 
     @AroundInvoke
     public Object logCallMethod(InvocationContext context) throws Exception {
         try {
-            logger.info("Method " + context.getMethod().getName() + " anropades i klassen " + context.getMethod().getDeclaringClass());
+            // Parameterized and on debug, so nothing is built unless the logger is turned up
+            logger.debug("Method {} anropades i klassen {}", context.getMethod().getName(), context.getMethod().getDeclaringClass());
             return context.proceed();
         } catch (Exception e) {
-            logger.error("\nEtt error uppstod i metoden " + context.getMethod().getName(),"\n" + e);
+            logger.error("Ett error uppstod i metoden {}", context.getMethod().getName(), e);
             throw e;
         }
     }
@@ -0,0 +1,147 @@
+package org.laboration3.Interceptor;
+
+import jakarta.interceptor.AroundInvoke;
+import jakarta.interceptor.Interceptor;
+import jakarta.interceptor.InvocationContext;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.container.TimeoutHandler;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@Interceptor
+@MetricsInterface
+public class Metrics {
+
+    private final MetricsRegistry registry = MetricsRegistry.getRegistry();
+
+    @AroundInvoke
+    public Object measureCallMethod(InvocationContext context) throws Exception {
+        MetricsRegistry.EndpointMetrics metrics = registry.forMethod(context.getMethod());
+        long start = System.nanoTime();
+
+        // A suspended request is done when it is resumed, maybe on another thread after the method returned
+        // and with the handler's exception, so it is measured by the AsyncResponse instead
+        Object[] parameters = context.getParameters();
+        for (int i = 0; i < parameters.length; i++) {
+            if (parameters[i] instanceof AsyncResponse response) {
+                MeasuredResponse measured = new MeasuredResponse(response, metrics, start);
+                parameters[i] = measured;
+                context.setParameters(parameters);
+                try {
+                    return context.proceed();
+                } catch (Exception e) {
+                    measured.record(true);
+                    throw e;
+                }
+            }
+        }
+
+        boolean failed = true;
+        try {
+            Object result = context.proceed();
+            failed = false;
+            return result;
+        } finally {
+            metrics.recordCall(System.nanoTime() - start, failed);
+        }
+    }
+
+    // Records the call the first time the request is resumed or cancelled, a resumed exception is a failure
+    static class MeasuredResponse implements AsyncResponse {
+        private final AsyncResponse response;
+        private final MetricsRegistry.EndpointMetrics metrics;
+        private final long start;
+        private final AtomicBoolean recorded = new AtomicBoolean();
+
+        MeasuredResponse(AsyncResponse response, MetricsRegistry.EndpointMetrics metrics, long start) {
+            this.response = response;
+            this.metrics = metrics;
+            this.start = start;
+        }
+
+        void record(boolean failed) {
+            if (recorded.compareAndSet(false, true)) {
+                metrics.recordCall(System.nanoTime() - start, failed);
+            }
+        }
+
+        @Override
+        public boolean resume(Object result) {
+            record(false);
+            return response.resume(result);
+        }
+
+        @Override
+        public boolean resume(Throwable failure) {
+            record(true);
+            return response.resume(failure);
+        }
+
+        @Override
+        public boolean cancel() {
+            record(true);
+            return response.cancel();
+        }
+
+        @Override
+        public boolean cancel(int retryAfter) {
+            record(true);
+            return response.cancel(retryAfter);
+        }
+
+        @Override
+        public boolean cancel(Date retryAfter) {
+            record(true);
+            return response.cancel(retryAfter);
+        }
+
+        @Override
+        public boolean isSuspended() {
+            return response.isSuspended();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return response.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return response.isDone();
+        }
+
+        @Override
+        public boolean setTimeout(long time, TimeUnit unit) {
+            return response.setTimeout(time, unit);
+        }
+
+        @Override
+        public void setTimeoutHandler(TimeoutHandler handler) {
+            response.setTimeoutHandler(handler);
+        }
+
+        @Override
+        public Collection<Class<?>> register(Class<?> callback) {
+            return response.register(callback);
+        }
+
+        @Override
+        public Map<Class<?>, Collection<Class<?>>> register(Class<?> callback, Class<?>... callbacks) {
+            return response.register(callback, callbacks);
+        }
+
+        @Override
+        public Collection<Class<?>> register(Object callback) {
+            return response.register(callback);
+        }
+
+        @Override
+        public Map<Class<?>, Collection<Class<?>>> register(Object callback, Object... callbacks) {
+            return response.register(callback, callbacks);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.laboration3.Interceptor;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class MetricsRegistry {
+
+    private static final MetricsRegistry REGISTRY = new MetricsRegistry();
+
+    private final Map<Method, EndpointMetrics> byMethod = new ConcurrentHashMap<>();
+    // Sorted by name so the exposition output is stable between scrapes
+    private final Map<String, EndpointMetrics> byName = new ConcurrentSkipListMap<>();
+
+    public static MetricsRegistry getRegistry() {
+        return REGISTRY;
+    }
+
+    public EndpointMetrics forMethod(Method method) {
+        // get first, computeIfAbsent is only needed the first time a method is called
+        EndpointMetrics metrics = byMethod.get(method);
+        if (metrics == null) {
+            metrics = byMethod.computeIfAbsent(method, m -> {
+                EndpointMetrics created = new EndpointMetrics();
+                byName.put(m.getDeclaringClass().getSimpleName() + "." + m.getName(), created);
+                return created;
+            });
+        }
+        return metrics;
+    }
+
+    // Prometheus text exposition format 0.0.4
+    public String toPrometheusText() {
+        StringBuilder text = new StringBuilder();
+
+        text.append("# HELP warehouse_request_duration_seconds Time spent in each resource method\n");
+        text.append("# TYPE warehouse_request_duration_seconds summary\n");
+        for (Map.Entry<String, EndpointMetrics> entry : byName.entrySet()) {
+            LatencyHistogram latency = entry.getValue().latency;
+            for (double quantile : new double[]{0.5, 0.99, 0.999}) {
+                text.append("warehouse_request_duration_seconds{method=\"").append(entry.getKey())
+                        .append("\",quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(latency.getValueAtPercentile(quantile * 100))).append('\n');
+            }
+            sample(text, "warehouse_request_duration_seconds_sum", entry.getKey(), seconds(latency.getSum()));
+            sample(text, "warehouse_request_duration_seconds_count", entry.getKey(), String.valueOf(latency.getCount()));
+        }
+
+        text.append("# HELP warehouse_requests_total Calls to each resource method\n");
+        text.append("# TYPE warehouse_requests_total counter\n");
+        byName.forEach((name, metrics) -> sample(text, "warehouse_requests_total", name, String.valueOf(metrics.calls.sum())));
+
+        text.append("# HELP warehouse_request_errors_total Calls that ended with an exception\n");
+        text.append("# TYPE warehouse_request_errors_total counter\n");
+        byName.forEach((name, metrics) -> sample(text, "warehouse_request_errors_total", name, String.valueOf(metrics.errors.sum())));
+
+        text.append("# HELP warehouse_response_bytes Size of the response bodies written\n");
+        text.append("# TYPE warehouse_response_bytes summary\n");
+        for (Map.Entry<String, EndpointMetrics> entry : byName.entrySet()) {
+            LatencyHistogram payload = entry.getValue().payloadBytes;
+            for (double quantile : new double[]{0.5, 0.99}) {
+                text.append("warehouse_response_bytes{method=\"").append(entry.getKey())
+                        .append("\",quantile=\"").append(quantile).append("\"} ")
+                        .append(payload.getValueAtPercentile(quantile * 100)).append('\n');
+            }
+            sample(text, "warehouse_response_bytes_sum", entry.getKey(), String.valueOf(payload.getSum()));
+            sample(text, "warehouse_response_bytes_count", entry.getKey(), String.valueOf(payload.getCount()));
+        }
+        return text.toString();
+    }
+
+    private static void sample(StringBuilder text, String metric, String method, String value) {
+        text.append(metric).append("{method=\"").append(method).append("\"} ").append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    public static class EndpointMetrics {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram payloadBytes = new LatencyHistogram();
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        public void recordCall(long durationNanos, boolean failed) {
+            calls.increment();
+            if (failed) {
+                errors.increment();
+            }
+            latency.record(durationNanos);
+        }
+
+        public void recordPayload(long bytes) {
+            payloadBytes.record(bytes);
+        }
+    }
+}
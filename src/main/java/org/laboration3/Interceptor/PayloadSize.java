@@ -0,0 +1,63 @@
+package org.laboration3.Interceptor;
+
+import jakarta.annotation.Priority;
+import jakarta.ws.rs.Priorities;
+import jakarta.ws.rs.container.ResourceInfo;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.ext.Provider;
+import jakarta.ws.rs.ext.WriterInterceptor;
+import jakarta.ws.rs.ext.WriterInterceptorContext;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+
+// Counts the bytes written for each response and records them on the resource method that produced it.
+// Runs outside Compression, so it is what goes on the wire that is counted
+@Provider
+@Priority(Priorities.HEADER_DECORATOR)
+public class PayloadSize implements WriterInterceptor {
+
+    @Context
+    private ResourceInfo resourceInfo;
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        Method method = resourceInfo == null ? null : resourceInfo.getResourceMethod();
+        if (method == null) {
+            context.proceed();
+            return;
+        }
+
+        OutputStream original = context.getOutputStream();
+        CountingOutputStream counting = new CountingOutputStream(original);
+        context.setOutputStream(counting);
+        try {
+            context.proceed();
+        } finally {
+            context.setOutputStream(original);
+            MetricsRegistry.getRegistry().forMethod(method).recordPayload(counting.count);
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.laboration3.resource.Exception;
+
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.ext.Provider;
+
+// A conditional write whose If-Match no longer matches the product
+@Provider
+public class ConcurrentModificationException extends ExceptionMapper<java.util.ConcurrentModificationException> {
+
+    @Override
+    protected String resMessage(java.util.ConcurrentModificationException exception) {
+        return exception.getMessage();
+    }
+
+    @Override
+    protected Response.Status resStatus() {
+        return Response.Status.PRECONDITION_FAILED;
+    }
+}
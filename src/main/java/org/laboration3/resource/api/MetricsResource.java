@@ -0,0 +1,24 @@
+package org.laboration3.resource.api;
+
+import jakarta.inject.Inject;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.Response;
+import org.laboration3.Interceptor.MetricsRegistry;
+import org.laboration3.resource.utils.ResponseCache;
+
+@Path("/metrics")
+public class MetricsResource {
+
+    @Inject
+    private ResponseCache responseCache;
+
+    private static final String PROMETHEUS_TEXT = "text/plain; version=0.0.4; charset=utf-8";
+
+    @GET
+    @Produces(PROMETHEUS_TEXT)
+    public Response getMetrics() {
+        return Response.ok(MetricsRegistry.getRegistry().toPrometheusText() + responseCache.toPrometheusText(), PROMETHEUS_TEXT).build();
+    }
+}
@@ -1,54 +1,102 @@
 package org.laboration3.resource.api;
 
+import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import jakarta.inject.Inject;
 import jakarta.interceptor.Interceptors;
 import jakarta.validation.Valid;
 import jakarta.ws.rs.*;
-import jakarta.ws.rs.core.MediaType;
-import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.container.Suspended;
+import jakarta.ws.rs.core.*;
+import jakarta.ws.rs.sse.Sse;
+import jakarta.ws.rs.sse.SseEventSink;
+import org.laboration3.Interceptor.Compression;
 import org.laboration3.Interceptor.Logging;
+import org.laboration3.Interceptor.Metrics;
+import org.laboration3.entities.Categories;
 import org.laboration3.entities.Product;
+import org.laboration3.resource.utils.ChangeStream;
 import org.laboration3.resource.utils.ObjectMapperConvertDate;
+import org.laboration3.resource.utils.ProductJsonStream;
+import org.laboration3.resource.utils.RequestExecutor;
+import org.laboration3.resource.utils.ResponseCache;
+import org.laboration3.service.ProductQuery;
+import org.laboration3.service.Version;
 import org.laboration3.service.Warehouse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 
 @Path("/products")
-@Interceptors(Logging.class)
+@Interceptors({Metrics.class, Logging.class})
 public class
 ProductResource {
 
     @Inject
     private Warehouse warehouse;
 
-    private final ObjectMapper objectMapper;
-    private final static Logger logger = LoggerFactory.getLogger(ProductResource.class);
+    @Inject
+    private ResponseCache responseCache;
 
-    public ProductResource() {
-        objectMapper = ObjectMapperConvertDate.configureObjectMapper();
-    }
+    @Inject
+    private RequestExecutor requestExecutor;
 
-    @GET
-    @Produces(MediaType.APPLICATION_JSON)
-    public Response getProducts() throws JsonProcessingException {
-        List<Product> productsArr = warehouse.getProductsArr();
+    @Inject
+    private ChangeStream changeStream;
+
+    @Context
+    private Request request;
+
+    @Context
+    private HttpHeaders httpHeaders;
+
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int CHUNK_SIZE = 1000;
+    private static final int BULK_BATCH_SIZE = 1000;
+    private static final String NDJSON = "application/x-ndjson";
+    private static final int PRECONDITION_REQUIRED = 428;
+    private static final ResponseCache.Key ALL_PRODUCTS = new ResponseCache.Key("products", "");
+    private static final ResponseCache.Key ALL_PRODUCTS_SMILE = new ResponseCache.Key("products.smile", "");
+    private static final String SMILE_TAG_SUFFIX = ".smile";
+    // JSON first, it is what clients without an Accept header get
+    private static final List<Variant> VARIANTS = Variant.mediaTypes(
+            MediaType.APPLICATION_JSON_TYPE, ObjectMapperConvertDate.APPLICATION_SMILE_TYPE).build();
+
+    private final static Logger logger = LoggerFactory.getLogger(ProductResource.class);
 
-        if (productsArr.isEmpty()) {
+    @GET
+    @Produces({MediaType.APPLICATION_JSON, ObjectMapperConvertDate.APPLICATION_SMILE})
+    public Response getProducts() throws IOException {
+        if (warehouse.getProductCount() == 0) {
             throw new NotFoundException("Inga produkter finns tillgängliga");
         }
 
-        Collections.sort(productsArr, Comparator.comparing(Product::id));
+        MediaType type = negotiated();
+        Version version = warehouse.getCatalogVersion();
+        Response.ResponseBuilder notModified = notModified(version, type);
+        if (notModified != null) {
+            return notModified.build();
+        }
 
-        return Response.status(Response.Status.ACCEPTED)
-                .type(MediaType.APPLICATION_JSON)
-                .entity(objectMapper.writeValueAsString(productsArr))
+        ResponseCache.Key key = isSmile(type) ? ALL_PRODUCTS_SMILE : ALL_PRODUCTS;
+        return listing(versioned(Response.status(Response.Status.ACCEPTED), version, type), key, version, type,
+                () -> chunked(warehouse.getProductPage(0, CHUNK_SIZE), lastId -> warehouse.getProductsAfterId(lastId, CHUNK_SIZE)))
                 .build();
 
     }
@@ -59,21 +107,22 @@ ProductResource {
     public Response getProductsWithQuery(
             @QueryParam("start") @DefaultValue("1") int start,
             @QueryParam("end") int end
-    ) throws JsonProcessingException {
-
-        List<Product> paginatedProducts = warehouse.getProductsArr()
-                .stream()
-                .filter(p -> p.id() >= start && p.id() <= end)
-                .sorted(Comparator.comparing(Product::id))
-                .toList();
-
+    ) {
         if (start <= 0 || end < start) {
             throw new BadRequestException("Ej giltigt start värde");
-        } else if (paginatedProducts.isEmpty()) {
+        }
+
+        List<Product> firstChunk = warehouse.getProductsInIdRange(start, end, CHUNK_SIZE);
+
+        if (firstChunk.isEmpty()) {
             throw new NotFoundException("Finns inga produkter med dessa id:n");
         }
 
-        return Response.ok(objectMapper.writeValueAsString(paginatedProducts), MediaType.APPLICATION_JSON).build();
+        Iterator<Product> products = chunked(firstChunk, lastId -> lastId >= end
+                ? Collections.emptyList()
+                : warehouse.getProductsInIdRange(lastId + 1, end, CHUNK_SIZE));
+
+        return Response.ok(ProductJsonStream.array(products), MediaType.APPLICATION_JSON).build();
     }
 
     @GET
@@ -81,47 +130,251 @@ ProductResource {
     @Produces(MediaType.APPLICATION_JSON)
     public Response getProductsWithPagination(
             @QueryParam("size") @DefaultValue("-1") int size,
-            @QueryParam("page") @DefaultValue("-1") int page
-    ) throws JsonProcessingException {
-        List<Product> allProducts = warehouse.getProductsArr();
-
-        if (allProducts.isEmpty()) {
+            @QueryParam("page") @DefaultValue("-1") int page,
+            @QueryParam("after") Integer after,
+            @QueryParam("limit") @DefaultValue("10") int limit
+    ) {
+        if (warehouse.getProductCount() == 0) {
             throw new BadRequestException("Inga produkter finns");
         }
 
-        int total = allProducts.size();
-        int start;
-        int end;
+        Map<String, Object> pagination = new LinkedHashMap<>();
 
-        if (page <= 0) {
+        if (page <= 0 && after == null) {
+            // No page asked for, every product is streamed in one response
+            pagination.put("page", 1);
+            pagination.put("next", null);
+            Iterator<Product> products = chunked(warehouse.getProductPage(0, CHUNK_SIZE),
+                    lastId -> warehouse.getProductsAfterId(lastId, CHUNK_SIZE));
+            return Response.ok(ProductJsonStream.page(products, pagination), MediaType.APPLICATION_JSON).build();
+        }
+
+        List<Product> paginatedProducts;
 
-            start = 0;
-            end = total;
-            page = 1;
+        if (after != null) {
+            // Keyset pagination, the cursor is the last id of the previous page
+            if (limit <= 0) {
+                throw new BadRequestException("Ej giltigt limit värde");
+            }
+            limit = Math.min(limit, MAX_PAGE_SIZE);
+            paginatedProducts = warehouse.getProductsAfterId(after, limit + 1);
+            pagination.put("limit", limit);
         } else {
             size = (size == -1) ? 10 : size;
-            start = (page - 1) * size;
-            end = Math.min(start + size, total);
+            if (size <= 0) {
+                throw new BadRequestException("Ej giltigt size värde");
+            }
+            limit = size;
+            // long, so a page far past the end can't overflow into a negative offset
+            long offset = (long) (page - 1) * size;
+            paginatedProducts = offset >= warehouse.getProductCount()
+                    ? Collections.emptyList()
+                    : warehouse.getProductPage((int) offset, size == Integer.MAX_VALUE ? size : size + 1);
+            pagination.put("page", page);
         }
 
-        List<Product> paginatedProducts = new ArrayList<>(allProducts.subList(start, end));
+        // One product more than the page is fetched to know if there is a next page
+        Integer next = null;
+        if (limit > 0 && paginatedProducts.size() > limit) {
+            paginatedProducts = paginatedProducts.subList(0, limit);
+            next = paginatedProducts.get(limit - 1).id();
+        }
+        pagination.put("next", next);
+
+        return Response.ok(ProductJsonStream.page(paginatedProducts.iterator(), pagination), MediaType.APPLICATION_JSON).build();
+    }
 
-        Collections.sort(paginatedProducts, Comparator.comparing(Product::id));
+    // Only the products changed after a catalog version, for clients that keep their own copy. The version is
+    // the ETag of /products or the "version" of the previous answer, "more" means another call is needed.
+    // A version from before a restart gives every product and "reset": true
+    @GET
+    @Path("/since/{version}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getProductsChangedSince(
+            @PathParam("version") String version,
+            @QueryParam("limit") @DefaultValue("1000") int limit
+    ) {
+        if (limit <= 0) {
+            throw new BadRequestException("Ej giltigt limit värde");
+        }
+        limit = Math.min(limit, MAX_PAGE_SIZE);
+
+        Version current = warehouse.getCatalogVersion();
+        String[] parts = versionOf(version).split("-");
+        long generation;
+        long since;
+        try {
+            if (parts.length != 2) {
+                throw new NumberFormatException();
+            }
+            generation = Long.parseUnsignedLong(parts[0], 16);
+            since = Long.parseUnsignedLong(parts[1], 16);
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("Ej giltig version: " + version);
+        }
+        boolean reset = generation != current.generation();
+        if (reset) {
+            since = 0;
+        } else if (since > current.number()) {
+            throw new BadRequestException("Version " + version + " finns inte än");
+        }
+
+        Warehouse.Changes changes = warehouse.getChangesSince(since, limit);
+
+        Map<String, Object> pagination = new LinkedHashMap<>();
+        pagination.put("version", versionTag(current.generation(), changes.upTo()));
+        pagination.put("more", changes.more());
+        if (reset) {
+            pagination.put("reset", true);
+        }
+        return Response.ok(ProductJsonStream.page(changes.products().iterator(), pagination), MediaType.APPLICATION_JSON).build();
+    }
+
+    // Server-sent events for every added ("added") and changed ("modified") product, with the product as data.
+    // Reconnecting with Last-Event-ID continues after that event, a "resync" event means changes were
+    // lost and the catalog has to be fetched again
+    @GET
+    @Path("/changes")
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    public void streamChanges(@Context SseEventSink sink, @Context Sse sse,
+                              @HeaderParam(HttpHeaders.LAST_EVENT_ID_HEADER) String lastEventId) {
+        changeStream.subscribe(sink, sse, lastEventId);
+    }
 
-        Map<String, Object> pagination = new HashMap<>();
+    // Name search for autocomplete: every word of q has to start a word of the name, "hår" finds "Hårblekning"
+    @GET
+    @Path("/search")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response searchProducts(
+            @QueryParam("q") String query,
+            @QueryParam("page") @DefaultValue("1") int page,
+            @QueryParam("size") @DefaultValue("10") int size
+    ) {
+        if (query == null || query.isBlank()) {
+            throw new BadRequestException("Sökord saknas");
+        }
+        if (page <= 0 || size <= 0) {
+            throw new BadRequestException("Ej giltigt page eller size värde");
+        }
+        size = Math.min(size, MAX_PAGE_SIZE);
+
+        // long, so a page far past the end can't overflow into a negative offset. Only a query that
+        // matches nothing is not found, a page after the last match is empty
+        long offset = (long) (page - 1) * size;
+        // One product more than the page is fetched to know if there is a next page
+        List<Product> found = offset > 0 && offset >= warehouse.getProductCount()
+                ? Collections.emptyList()
+                : warehouse.searchByName(query, (int) offset, size + 1);
+        if (found.isEmpty() && page == 1) {
+            throw new NotFoundException("Inga produkter matchade: " + query);
+        }
+
+        Map<String, Object> pagination = new LinkedHashMap<>();
         pagination.put("page", page);
-        pagination.put("size", paginatedProducts.size());
+        pagination.put("next", found.size() > size ? page + 1 : null);
+        if (found.size() > size) {
+            found = found.subList(0, size);
+        }
+        return Response.ok(ProductJsonStream.page(found.iterator(), pagination), MediaType.APPLICATION_JSON).build();
+    }
+
+    // Product count, rating histogram and average rating per category and for the whole catalog, and how many
+    // products were created and changed at or after since (a date or date and time, default the first of this
+    // month). Kept in the response cache until the catalog changes
+    @GET
+    @Path("/stats")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getStats(@QueryParam("since") String since) throws JsonProcessingException {
+        LocalDateTime from = since == null || since.isBlank()
+                ? LocalDate.now().withDayOfMonth(1).atStartOfDay()
+                : date(since).truncatedTo(ChronoUnit.SECONDS);
+
+        Version version = warehouse.getCatalogVersion();
+        ResponseCache.Key key = new ResponseCache.Key("stats", from.toString());
+        byte[] body = responseCache.get(key, version);
+        if (body == null) {
+            body = ObjectMapperConvertDate.sharedObjectMapper().writeValueAsBytes(warehouse.getStats(from));
+            responseCache.put(key, version, body);
+        }
+        return Response.ok(body, MediaType.APPLICATION_JSON).build();
+    }
+
+    // Any combination of id range, category, rating range, creation date and name, e.g.
+    // ?category=clothes&minRating=8&createdAfter=2023-09-01&sort=name&limit=10. sort is id, name, created,
+    // newest or rating (highest first). X-Query-Plan tells which index or scan the warehouse used
+    @GET
+    @Path("/query")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response queryProducts(
+            @QueryParam("minId") Integer minId,
+            @QueryParam("maxId") Integer maxId,
+            @QueryParam("category") String category,
+            @QueryParam("minRating") Integer minRating,
+            @QueryParam("maxRating") Integer maxRating,
+            @QueryParam("createdAfter") String createdAfter,
+            @QueryParam("name") String name,
+            @QueryParam("sort") @DefaultValue("id") String sort,
+            @QueryParam("limit") @DefaultValue("100") int limit
+    ) {
+        if (limit <= 0) {
+            throw new BadRequestException("Ej giltigt limit värde");
+        }
+        ProductQuery.Sort order = Arrays.stream(ProductQuery.Sort.values())
+                .filter(s -> s.name().equalsIgnoreCase(sort.trim()))
+                .findFirst()
+                .orElseThrow(() -> new BadRequestException("Ej giltig sortering: " + sort));
+        Categories productCategory = null;
+        if (category != null) {
+            productCategory = Arrays.stream(Categories.values())
+                    .filter(c -> c.toString().equals(category.trim()))
+                    .findFirst()
+                    .orElseThrow(() -> new BadRequestException("Ej giltig kategori: " + category));
+        }
 
-        Map<String, Object> products = new HashMap<>();
-        products.put("products", paginatedProducts);
-        products.put("pagination", pagination);
+        ProductQuery query = ProductQuery.all()
+                .withIds(minId, maxId)
+                .withCategory(productCategory)
+                .withRatings(minRating, maxRating)
+                .withCreatedAfter(createdAfter == null || createdAfter.isBlank() ? null : date(createdAfter))
+                .withName(name == null || name.isBlank() ? null : name)
+                .sortedBy(order)
+                .limitedTo(Math.min(limit, MAX_PAGE_SIZE));
+        Warehouse.QueryResult result = warehouse.query(query);
+        if (result.products().isEmpty()) {
+            throw new NotFoundException("Inga produkter matchade frågan");
+        }
+        return Response.ok(ProductJsonStream.array(result.products().iterator()), MediaType.APPLICATION_JSON)
+                .header("X-Query-Plan", result.path().name().toLowerCase(Locale.ROOT))
+                .build();
+    }
 
-        return Response.ok(objectMapper.writeValueAsString(products), MediaType.APPLICATION_JSON).build();
+    // A date, which means its start, or a date and time
+    private static LocalDateTime date(String value) {
+        try {
+            return value.contains("T") ? LocalDateTime.parse(value.trim()) : LocalDate.parse(value.trim()).atStartOfDay();
+        } catch (DateTimeParseException e) {
+            throw new BadRequestException("Ej giltigt datum: " + value);
+        }
+    }
+
+    // Lazily walks the catalog chunk by chunk while the response is written
+    private static Iterator<Product> chunked(List<Product> firstChunk, IntFunction<List<Product>> nextChunkAfter) {
+        return Stream.iterate(firstChunk, chunk -> !chunk.isEmpty(), chunk -> chunk.size() < CHUNK_SIZE
+                        ? Collections.emptyList()
+                        : nextChunkAfter.apply(chunk.get(chunk.size() - 1).id()))
+                .flatMap(List::stream)
+                .iterator();
     }
 
     @POST
-    @Consumes(MediaType.APPLICATION_JSON)
-    public Response createProduct(@Valid Product product) throws JsonProcessingException {
+    @Consumes({MediaType.APPLICATION_JSON, ObjectMapperConvertDate.APPLICATION_SMILE})
+    public void createProduct(@Valid Product product, @Suspended AsyncResponse response) {
+        // The request is only read on the container's thread
+        MediaType type = negotiated();
+        requestExecutor.execute(response, () -> create(product, type));
+    }
+
+    private Response create(Product product, MediaType type) throws JsonProcessingException {
        Product newProduct = new org.laboration3.entities.Product(
                 product.id(),
                 product.name(),
@@ -131,39 +384,311 @@ ProductResource {
                 LocalDateTime.now()
         );
         warehouse.addProduct(newProduct);
-        logger.info("Produkt " + newProduct + " skapades.");
+        logger.info("Produkt {} skapades.", newProduct);
         return Response.status(Response.Status.CREATED)
-                .type(MediaType.APPLICATION_JSON)
-                .entity(objectMapper.writeValueAsString(newProduct))
+                .type(type)
+                .entity(productWriter(type).writeValueAsBytes(newProduct))
                 .build();
     }
 
+    @POST
+    @Path("/bulk")
+    @Consumes({MediaType.APPLICATION_JSON, NDJSON})
+    @Produces(MediaType.APPLICATION_JSON)
+    public void createProducts(InputStream body, @Suspended AsyncResponse response) {
+        requestExecutor.execute(response, () -> createAll(body));
+    }
+
+    private Response createAll(InputStream body) throws IOException {
+        List<Product> batch = new ArrayList<>(BULK_BATCH_SIZE);
+        List<Map<String, Object>> errors = new ArrayList<>();
+        int created = 0;
+        int index = 0;
+        int batchStart = 0;
+
+        // Both a JSON array and newline delimited objects are read one product at a time
+        try (MappingIterator<Product> products = ObjectMapperConvertDate.productReader().readValues(body)) {
+            while (true) {
+                try {
+                    if (!products.hasNextValue()) {
+                        break;
+                    }
+                    Product product = products.nextValue();
+                    LocalDateTime now = LocalDateTime.now();
+                    batch.add(new Product(product.id(), product.name(), product.category(), product.rating(), now, now));
+                } catch (JsonParseException e) {
+                    // Broken JSON, there is no way to find where the next product starts
+                    errors.add(bulkError(index, null, "Ogiltig JSON: " + e.getOriginalMessage()));
+                    break;
+                } catch (JsonMappingException e) {
+                    // The iterator skips ahead to the next product
+                    errors.add(bulkError(index, null, "Ogiltig produkt: " + e.getOriginalMessage()));
+                    batch.add(null);
+                }
+                index++;
+
+                if (batch.size() == BULK_BATCH_SIZE) {
+                    created += insertBatch(batch, batchStart, errors);
+                    batchStart = index;
+                    batch.clear();
+                }
+            }
+        }
+        created += insertBatch(batch, batchStart, errors);
+
+        logger.info("{} produkter skapades i bulk, {} fel", created, errors.size());
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("created", created);
+        result.put("failed", errors.size());
+        result.put("errors", errors);
+        return Response.ok(ObjectMapperConvertDate.sharedObjectMapper().writeValueAsBytes(result), MediaType.APPLICATION_JSON).build();
+    }
+
+    // Products that failed to parse are kept as null so positions line up with the request
+    private int insertBatch(List<Product> batch, int batchStart, List<Map<String, Object>> errors) {
+        List<Product> parsed = new ArrayList<>(batch.size());
+        List<Integer> positions = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.get(i) != null) {
+                parsed.add(batch.get(i));
+                positions.add(batchStart + i);
+            }
+        }
+        if (parsed.isEmpty()) {
+            return 0;
+        }
+
+        Map<Integer, String> rejected = warehouse.addProducts(parsed);
+        rejected.forEach((position, reason) ->
+                errors.add(bulkError(positions.get(position), parsed.get(position).id(), reason)));
+        return parsed.size() - rejected.size();
+    }
+
+    private static Map<String, Object> bulkError(int index, Integer id, String reason) {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("index", index);
+        if (id != null) {
+            error.put("id", id);
+        }
+        error.put("error", reason);
+        return error;
+    }
+
     @GET
     @Path("/{id}")
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, ObjectMapperConvertDate.APPLICATION_SMILE})
     public Response getProductById(@PathParam("id") int id) throws JsonProcessingException {
+        Version version = warehouse.getProductVersion(id);
         List<Product> productById = warehouse.getProductBasedOnId(id);
 
-        if (productById.isEmpty()) {
+        if (version == null || productById.isEmpty()) {
+            throw new NotFoundException("Finns ingen product med id: " + id);
+        }
+
+        MediaType type = negotiated();
+        Response.ResponseBuilder notModified = notModified(version, type);
+        if (notModified != null) {
+            return notModified.build();
+        }
+
+        ResponseCache.Key key = new ResponseCache.Key(isSmile(type) ? "product.smile" : "product", String.valueOf(id));
+        byte[] body = responseCache.get(key, version);
+        if (body == null) {
+            body = productWriter(type).writeValueAsBytes(productById.get(0));
+            responseCache.put(key, version, body);
+        }
+
+        return versioned(Response.ok(body, type), version, type).build();
+    }
+
+    // Only changes the product if If-Match still names its current version, so no update is lost silently
+    @PUT
+    @Path("/{id}")
+    @Consumes({MediaType.APPLICATION_JSON, ObjectMapperConvertDate.APPLICATION_SMILE})
+    public void updateProduct(@PathParam("id") int id, @HeaderParam(HttpHeaders.IF_MATCH) String ifMatch,
+                              @Valid Product product, @Suspended AsyncResponse response) {
+        requestExecutor.execute(response, () -> update(id, ifMatch, product));
+    }
+
+    private Response update(int id, String ifMatch, Product product) {
+        if (ifMatch == null || ifMatch.isBlank()) {
+            throw new ClientErrorException(Response.status(PRECONDITION_REQUIRED)
+                    .entity("{\"error\": \"If-Match med produktens ETag krävs\"}")
+                    .type(MediaType.APPLICATION_JSON)
+                    .build());
+        }
+        if (product.id() != 0 && product.id() != id) {
+            throw new BadRequestException("Id i body stämmer inte med id " + id);
+        }
+
+        Version current = warehouse.getProductVersion(id);
+        if (current == null) {
             throw new NotFoundException("Finns ingen product med id: " + id);
         }
+        if (!matches(ifMatch, current)) {
+            throw new ConcurrentModificationException("Produkt " + id + " har ändrats, hämta den igen");
+        }
+
+        // Throws ConcurrentModificationException if someone else changed the product since current was read
+        Version changed = warehouse.modifyProduct(id, current, product.name(), product.category(), product.rating());
+        if (changed == null) {
+            throw new NotFoundException("Finns ingen product med id: " + id);
+        }
+
+        logger.info("Produkt {} ändrades till version {}", id, changed.number());
+        return versioned(Response.noContent(), changed, MediaType.APPLICATION_JSON_TYPE).build();
+    }
+
+    // If-Match is "*" or a list of ETags, and only strong ETags can match. The ETags of every
+    // representation, JSON or Smile and compressed or not, name the same version
+    private static boolean matches(String ifMatch, Version current) {
+        if (ifMatch.trim().equals("*")) {
+            return true;
+        }
+        return Arrays.stream(ifMatch.split(","))
+                .map(String::trim)
+                .anyMatch(tag -> tag.startsWith("\"") && representations(current).contains(tag.replace("\"", "")));
+    }
 
-        return Response.ok(objectMapper.writeValueAsString(productById.get(0)), MediaType.APPLICATION_JSON).build();
+    private static List<String> representations(Version version) {
+        List<String> tags = new ArrayList<>();
+        for (MediaType type : List.of(MediaType.APPLICATION_JSON_TYPE, ObjectMapperConvertDate.APPLICATION_SMILE_TYPE)) {
+            EntityTag tag = entityTag(version, type);
+            tags.add(tag.getValue());
+            for (Compression.Encoding encoding : Compression.Encoding.values()) {
+                tags.add(Compression.tagged(tag, encoding).getValue());
+            }
+        }
+        return tags;
     }
 
     @GET
     @Path("/category/{category}")
-    @Produces(MediaType.APPLICATION_JSON)
-    public Response getProductsByCategory(@PathParam("category") String category) throws JsonProcessingException {
-        List<Product> categoryProduct = warehouse.getProductsArr().stream()
-                .filter(p -> p.category().toString().trim().equals(category.trim()))
-                .collect(Collectors.toList());
-
-        if (categoryProduct.isEmpty()) {
+    @Produces({MediaType.APPLICATION_JSON, ObjectMapperConvertDate.APPLICATION_SMILE})
+    public Response getProductsByCategory(@PathParam("category") String category) throws IOException {
+        Categories productCategory = Arrays.stream(Categories.values())
+                .filter(c -> c.toString().equals(category.trim()))
+                .findFirst()
+                .orElse(null);
+
+        if (productCategory == null || warehouse.getHowManyProductsRelatedToCategory(productCategory) == 0) {
             throw new NotFoundException("Inga produkter hittades i kategorin: " + category);
         }
 
-        return Response.ok(objectMapper.writeValueAsString(categoryProduct), MediaType.APPLICATION_JSON).build();
+        MediaType type = negotiated();
+        Version version = warehouse.getCategoryVersion(productCategory);
+        Response.ResponseBuilder notModified = notModified(version, type);
+        if (notModified != null) {
+            return notModified.build();
+        }
+
+        ResponseCache.Key key = new ResponseCache.Key(isSmile(type) ? "category.smile" : "category", productCategory.name());
+        return listing(versioned(Response.ok(), version, type), key, version, type,
+                () -> chunked(warehouse.getProductsInCategoryAfterId(productCategory, Integer.MIN_VALUE, CHUNK_SIZE),
+                        lastId -> warehouse.getProductsInCategoryAfterId(productCategory, lastId, CHUNK_SIZE)))
+                .build();
+    }
+
+    // Cached listings above the compression threshold are also kept compressed for the client's Accept-Encoding,
+    // so a hot GET skips both serialization and compression. The compressed entry is made from the cached
+    // bytes on the first hit after a miss
+    private Response.ResponseBuilder listing(Response.ResponseBuilder response, ResponseCache.Key key, Version version,
+                                             MediaType type, Supplier<Iterator<Product>> products) throws IOException {
+        response.type(type);
+        Compression.Encoding encoding = Compression.negotiate(httpHeaders.getHeaderString(HttpHeaders.ACCEPT_ENCODING));
+        ResponseCache.Key compressedKey = null;
+        if (encoding != null) {
+            compressedKey = new ResponseCache.Key(key.kind() + "." + encoding.token(), key.id());
+            byte[] compressed = responseCache.get(compressedKey, version);
+            if (compressed != null) {
+                return response.encoding(encoding.token()).tag(Compression.tagged(entityTag(version, type), encoding))
+                        .entity(compressed);
+            }
+        }
+
+        byte[] body = responseCache.get(key, version);
+        if (body == null) {
+            // Compression, if any, is left to the interceptor
+            return response.entity(responseCache.capture(key, version, ProductJsonStream.array(products.get(), type)));
+        }
+        if (compressedKey != null && body.length > Compression.threshold()) {
+            byte[] compressed = Compression.compress(body, encoding);
+            responseCache.put(compressedKey, version, compressed);
+            return response.encoding(encoding.token()).tag(Compression.tagged(entityTag(version, type), encoding))
+                    .entity(compressed);
+        }
+        return response.entity(body);
+    }
+
+    // Smile if the Accept header prefers it, otherwise JSON. RESTEasy adds Vary: Accept to the response
+    private MediaType negotiated() {
+        Variant variant = request.selectVariant(VARIANTS);
+        return variant == null ? MediaType.APPLICATION_JSON_TYPE : variant.getMediaType();
+    }
+
+    private static boolean isSmile(MediaType type) {
+        return ObjectMapperConvertDate.APPLICATION_SMILE_TYPE.isCompatible(type);
+    }
+
+    private static ObjectWriter productWriter(MediaType type) {
+        return isSmile(type) ? ObjectMapperConvertDate.smileProductWriter() : ObjectMapperConvertDate.productWriter();
+    }
+
+    // A 304 for clients whose If-None-Match or If-Modified-Since still matches, before anything is serialized
+    private Response.ResponseBuilder notModified(Version version, MediaType type) {
+        EntityTag tag = entityTag(version, type);
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(lastModified(version), tag);
+        if (notModified != null) {
+            return versioned(notModified, version, type);
+        }
+
+        // A client that got the compressed body sends back its tag, the body it has is just as current
+        String ifNoneMatch = httpHeaders.getHeaderString(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch == null) {
+            return null;
+        }
+        for (Compression.Encoding encoding : Compression.Encoding.values()) {
+            EntityTag compressed = Compression.tagged(tag, encoding);
+            boolean listed = Arrays.stream(ifNoneMatch.split(","))
+                    .map(String::trim)
+                    .anyMatch(sent -> sent.replaceFirst("^W/", "").equals("\"" + compressed.getValue() + "\""));
+            if (listed) {
+                return versioned(Response.notModified(), version, type).tag(compressed);
+            }
+        }
+        return null;
+    }
+
+    // no-cache lets clients keep the response but makes them ask again with the ETag every time
+    private static Response.ResponseBuilder versioned(Response.ResponseBuilder response, Version version, MediaType type) {
+        CacheControl revalidate = new CacheControl();
+        revalidate.setNoCache(true);
+        return response.tag(entityTag(version, type))
+                .lastModified(lastModified(version))
+                .cacheControl(revalidate);
+    }
+
+    // The two representations of a version differ byte for byte, so each gets its own strong ETag
+    private static EntityTag entityTag(Version version, MediaType type) {
+        String tag = versionTag(version.generation(), version.number());
+        return new EntityTag(isSmile(type) ? tag + SMILE_TAG_SUFFIX : tag);
+    }
+
+    private static String versionTag(long generation, long number) {
+        return Long.toHexString(generation) + "-" + Long.toHexString(number);
+    }
+
+    // "<generation>-<number>" from any of the ETags of a version, the representation suffixes start with a dot
+    private static String versionOf(String tag) {
+        String value = tag.trim().replaceFirst("^W/", "").replace("\"", "");
+        int suffix = value.indexOf('.');
+        return suffix < 0 ? value : value.substring(0, suffix);
+    }
+
+    private static Date lastModified(Version version) {
+        // HTTP dates have whole seconds
+        return Date.from(version.lastModified().truncatedTo(ChronoUnit.SECONDS).atZone(ZoneId.systemDefault()).toInstant());
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,260 @@
+package org.laboration3.resource.utils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.sse.OutboundSseEvent;
+import jakarta.ws.rs.sse.Sse;
+import jakarta.ws.rs.sse.SseEventSink;
+import org.laboration3.service.ChangeFeed;
+import org.laboration3.service.Version;
+import org.laboration3.service.Warehouse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Streams the warehouse's changes to SSE clients. A write only wakes up the dispatcher thread, which
+// hands every client with new changes to a sender thread, so a slow client holds up no one but itself.
+// A client has at most MAX_PENDING events on the way, one that falls a whole ring buffer behind is
+// sent a resync event and dropped
+@ApplicationScoped
+public class ChangeStream {
+
+    static final int MAX_PENDING = 256;
+    private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    static final String RESYNC_EVENT = "resync";
+
+    private final static Logger logger = LoggerFactory.getLogger(ChangeStream.class);
+
+    private final Warehouse warehouse;
+    private final ChangeFeed feed;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final Runnable wakeUp = this::wakeUp;
+    private final ExecutorService senders;
+    private final Thread dispatcher;
+    private volatile boolean idle;
+    private volatile boolean stopped;
+
+    // Clients usually follow the feed in step, so the last event is built once and sent to all of them
+    private volatile PreparedEvent lastEvent;
+
+    private record PreparedEvent(ChangeFeed.Change change, OutboundSseEvent event) {
+    }
+
+    private static final class Subscriber {
+        final SseEventSink sink;
+        final Sse sse;
+        // Number of the next change to send, only moved by the sender that holds draining
+        volatile long next;
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicBoolean draining = new AtomicBoolean();
+
+        Subscriber(SseEventSink sink, Sse sse, long next) {
+            this.sink = sink;
+            this.sse = sse;
+            this.next = next;
+        }
+    }
+
+    // Only for the container's proxy
+    protected ChangeStream() {
+        warehouse = null;
+        feed = null;
+        senders = null;
+        dispatcher = null;
+    }
+
+    @Inject
+    public ChangeStream(Warehouse warehouse) {
+        this.warehouse = warehouse;
+        feed = warehouse.getChangeFeed();
+        senders = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "warehouse-changes-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dispatcher = new Thread(this::dispatch, "warehouse-changes");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        feed.addListener(wakeUp);
+    }
+
+    // Without Last-Event-ID the client gets the changes from now on. With one it gets every change after
+    // that event, or a resync event first if those are no longer in the ring buffer or the event is from
+    // before a restart
+    public void subscribe(SseEventSink sink, Sse sse, String lastEventId) {
+        Version current = warehouse.getCatalogVersion();
+        long next = current.number() + 1;
+
+        if (lastEventId != null && !lastEventId.isBlank()) {
+            long resumeAfter = parseEventId(lastEventId, current);
+            if (resumeAfter >= 0 && !overtaken(resumeAfter + 1)) {
+                next = resumeAfter + 1;
+            } else {
+                sink.send(resyncEvent(sse, current));
+            }
+        }
+
+        subscribers.add(new Subscriber(sink, sse, next));
+        wakeUp();
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    private void dispatch() {
+        while (!stopped) {
+            for (Subscriber s : subscribers) {
+                if (s.sink.isClosed()) {
+                    subscribers.remove(s);
+                } else if (overtaken(s.next)) {
+                    drop(s);
+                } else if (hasWork(s) && s.draining.compareAndSet(false, true)) {
+                    senders.execute(() -> drain(s));
+                }
+            }
+
+            // Writers and senders only unpark an idle dispatcher, the second look catches what
+            // arrived between the loop and going idle
+            idle = true;
+            if (subscribers.stream().noneMatch(this::hasWork)) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            idle = false;
+        }
+    }
+
+    private void wakeUp() {
+        if (idle) {
+            LockSupport.unpark(dispatcher);
+        }
+    }
+
+    private boolean hasWork(Subscriber s) {
+        if (s.draining.get() || s.pending.get() >= MAX_PENDING) {
+            return false;
+        }
+        ChangeFeed.Change change = feed.slot(s.next);
+        return change != null && change.number() >= s.next;
+    }
+
+    private boolean overtaken(long next) {
+        ChangeFeed.Change change = feed.slot(next);
+        return change != null && change.number() > next;
+    }
+
+    private void drain(Subscriber s) {
+        try {
+            while (s.pending.get() < MAX_PENDING && !s.sink.isClosed()) {
+                long next = s.next;
+                ChangeFeed.Change change = feed.slot(next);
+                if (change == null || change.number() < next) {
+                    break;
+                }
+                if (change.number() > next) {
+                    drop(s);
+                    break;
+                }
+                s.pending.incrementAndGet();
+                s.sink.send(event(s.sse, change)).whenComplete((sent, failure) -> {
+                    s.pending.decrementAndGet();
+                    if (failure != null) {
+                        // The client went away
+                        subscribers.remove(s);
+                        s.sink.close();
+                    }
+                    wakeUp();
+                });
+                s.next = next + 1;
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Kunde inte skicka ändringar till en klient", e);
+            subscribers.remove(s);
+            s.sink.close();
+        } finally {
+            s.draining.set(false);
+            wakeUp();
+        }
+    }
+
+    private void drop(Subscriber s) {
+        if (!subscribers.remove(s)) {
+            return;
+        }
+        logger.info("En klient låg mer än {} ändringar efter och kopplades bort", feed.getCapacity());
+        // Sending can block on a stuck client, so it is never done on the dispatcher
+        senders.execute(() -> s.sink.send(resyncEvent(s.sse, warehouse.getCatalogVersion()))
+                .whenComplete((sent, failure) -> s.sink.close()));
+    }
+
+    private OutboundSseEvent event(Sse sse, ChangeFeed.Change change) {
+        PreparedEvent prepared = lastEvent;
+        if (prepared != null && prepared.change() == change) {
+            return prepared.event();
+        }
+        try {
+            OutboundSseEvent event = sse.newEventBuilder()
+                    .id(eventId(change.version()))
+                    .name(change.kind().name().toLowerCase(Locale.ROOT))
+                    .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                    .data(String.class, ObjectMapperConvertDate.productWriter().writeValueAsString(change.product()))
+                    .build();
+            lastEvent = new PreparedEvent(change, event);
+            return event;
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Carries the current version as id, a client that reloads the catalog and reconnects with it
+    // gets every change after the reload
+    private static OutboundSseEvent resyncEvent(Sse sse, Version current) {
+        return sse.newEventBuilder()
+                .id(eventId(current))
+                .name(RESYNC_EVENT)
+                .data(String.class, "Ändringar har gått förlorade, hämta /products på nytt")
+                .build();
+    }
+
+    // Same shape as the ETags: generation and version number in hex
+    private static String eventId(Version version) {
+        return Long.toHexString(version.generation()) + "-" + Long.toHexString(version.number());
+    }
+
+    // The version number in the id, or -1 if the id isn't from this generation or can't be read
+    private static long parseEventId(String eventId, Version current) {
+        String[] parts = eventId.trim().split("-");
+        try {
+            if (parts.length == 2 && Long.parseUnsignedLong(parts[0], 16) == current.generation()) {
+                long number = Long.parseUnsignedLong(parts[1], 16);
+                return number <= current.number() ? number : -1;
+            }
+        } catch (NumberFormatException e) {
+            // Handled like an id from another generation
+        }
+        return -1;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        stopped = true;
+        feed.removeListener(wakeUp);
+        LockSupport.unpark(dispatcher);
+        subscribers.forEach(s -> s.sink.close());
+        subscribers.clear();
+        senders.shutdown();
+    }
+}
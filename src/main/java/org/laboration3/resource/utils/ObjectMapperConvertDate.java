@@ -1,22 +1,117 @@
 package org.laboration3.resource.utils;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.ext.ContextResolver;
 import jakarta.ws.rs.ext.Provider;
+import org.laboration3.entities.Product;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
 
 
 @Provider
 public class ObjectMapperConvertDate implements ContextResolver<ObjectMapper> {
+
+    // Built once, the mapper is thread safe after configuration and keeps its serializer caches warm
+    private static final ObjectMapper SHARED_OBJECT_MAPPER = configureObjectMapper();
+
+    private static final ObjectWriter PRODUCT_WRITER = SHARED_OBJECT_MAPPER.writerFor(Product.class);
+    private static final ObjectWriter PRODUCT_LIST_WRITER = SHARED_OBJECT_MAPPER.writerFor(new TypeReference<List<Product>>() {
+    });
+    private static final ObjectWriter PAGINATION_WRITER = SHARED_OBJECT_MAPPER.writerFor(new TypeReference<Map<String, Object>>() {
+    });
+    private static final ObjectReader PRODUCT_READER = SHARED_OBJECT_MAPPER.readerFor(Product.class);
+
+    // Binary JSON for other services, property names are written once per response and dates are epoch seconds
+    public static final String APPLICATION_SMILE = "application/x-jackson-smile";
+    public static final MediaType APPLICATION_SMILE_TYPE = MediaType.valueOf(APPLICATION_SMILE);
+
+    private static final ObjectMapper SMILE_OBJECT_MAPPER = configureSmileMapper();
+    private static final ObjectWriter SMILE_PRODUCT_WRITER = SMILE_OBJECT_MAPPER.writerFor(Product.class);
+    private static final ObjectWriter SMILE_PAGINATION_WRITER = SMILE_OBJECT_MAPPER.writerFor(new TypeReference<Map<String, Object>>() {
+    });
+    private static final ObjectReader SMILE_PRODUCT_READER = SMILE_OBJECT_MAPPER.readerFor(Product.class);
+
     public static ObjectMapper configureObjectMapper() {
         ObjectMapper objectMapper = new ObjectMapper();
         objectMapper.registerModule(new JavaTimeModule()).configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS,false);
         return objectMapper;
     }
 
+    // Same zone as the Last-Modified headers, sub-second precision is dropped
+    public static ObjectMapper configureSmileMapper() {
+        SimpleModule epochSeconds = new SimpleModule("EpochSecondDates");
+        epochSeconds.addSerializer(LocalDateTime.class, new StdSerializer<>(LocalDateTime.class) {
+            @Override
+            public void serialize(LocalDateTime date, JsonGenerator generator, SerializerProvider provider) throws IOException {
+                generator.writeNumber(date.atZone(ZoneId.systemDefault()).toEpochSecond());
+            }
+        });
+        epochSeconds.addDeserializer(LocalDateTime.class, new StdDeserializer<>(LocalDateTime.class) {
+            @Override
+            public LocalDateTime deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+                return LocalDateTime.ofInstant(Instant.ofEpochSecond(parser.getLongValue()), ZoneId.systemDefault());
+            }
+        });
+        return new ObjectMapper(new SmileFactory()).registerModule(epochSeconds);
+    }
+
+    public static ObjectMapper sharedObjectMapper() {
+        return SHARED_OBJECT_MAPPER;
+    }
+
+    public static ObjectWriter productWriter() {
+        return PRODUCT_WRITER;
+    }
+
+    public static ObjectWriter productListWriter() {
+        return PRODUCT_LIST_WRITER;
+    }
+
+    public static ObjectWriter paginationWriter() {
+        return PAGINATION_WRITER;
+    }
+
+    public static ObjectReader productReader() {
+        return PRODUCT_READER;
+    }
+
+    public static ObjectMapper smileObjectMapper() {
+        return SMILE_OBJECT_MAPPER;
+    }
+
+    public static ObjectWriter smileProductWriter() {
+        return SMILE_PRODUCT_WRITER;
+    }
+
+    public static ObjectWriter smilePaginationWriter() {
+        return SMILE_PAGINATION_WRITER;
+    }
+
+    public static ObjectReader smileProductReader() {
+        return SMILE_PRODUCT_READER;
+    }
+
     @Override
     public ObjectMapper getContext(Class<?> type) {
-        return configureObjectMapper();
+        return SHARED_OBJECT_MAPPER;
     }
-}
\ No newline at end of file
+}
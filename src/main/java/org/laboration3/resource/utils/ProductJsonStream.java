@@ -0,0 +1,85 @@
+package org.laboration3.resource.utils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.laboration3.entities.Product;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Map;
+
+public class ProductJsonStream {
+
+    // Flushing after every value would turn each product into its own write to the client
+    private record Format(ObjectMapper mapper, ObjectWriter productWriter, ObjectWriter paginationWriter) {
+        Format {
+            productWriter = productWriter.without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+            paginationWriter = paginationWriter.without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        }
+    }
+
+    private static final Format JSON = new Format(ObjectMapperConvertDate.sharedObjectMapper(),
+            ObjectMapperConvertDate.productWriter(), ObjectMapperConvertDate.paginationWriter());
+    private static final Format SMILE = new Format(ObjectMapperConvertDate.smileObjectMapper(),
+            ObjectMapperConvertDate.smileProductWriter(), ObjectMapperConvertDate.smilePaginationWriter());
+
+    // Writes the products as a JSON array one by one, so the full document is never held in memory
+    public static StreamingOutput array(Iterator<Product> products) {
+        return array(products, MediaType.APPLICATION_JSON_TYPE);
+    }
+
+    // JSON or, for application/x-jackson-smile, the same document in Smile
+    public static StreamingOutput array(Iterator<Product> products, MediaType type) {
+        Format format = format(type);
+        return output -> {
+            try (JsonGenerator generator = createGenerator(format, output)) {
+                writeProducts(format, generator, products);
+            }
+        };
+    }
+
+    // Same envelope as the pagination endpoint: {"products": [...], "pagination": {...}}
+    // The size is only known once every product has been written, so pagination comes last
+    public static StreamingOutput page(Iterator<Product> products, Map<String, Object> pagination) {
+        return output -> {
+            try (JsonGenerator generator = createGenerator(JSON, output)) {
+                generator.writeStartObject();
+                generator.writeFieldName("products");
+                int size = writeProducts(JSON, generator, products);
+
+                pagination.put("size", size);
+                generator.writeFieldName("pagination");
+                JSON.paginationWriter().writeValue(generator, pagination);
+                generator.writeEndObject();
+            }
+        };
+    }
+
+    private static Format format(MediaType type) {
+        return ObjectMapperConvertDate.APPLICATION_SMILE_TYPE.isCompatible(type) ? SMILE : JSON;
+    }
+
+    private static JsonGenerator createGenerator(Format format, OutputStream output) throws IOException {
+        JsonGenerator generator = format.mapper().getFactory().createGenerator(output);
+        // The container owns the response stream
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        return generator;
+    }
+
+    private static int writeProducts(Format format, JsonGenerator generator, Iterator<Product> products) throws IOException {
+        int written = 0;
+
+        generator.writeStartArray();
+        while (products.hasNext()) {
+            format.productWriter().writeValue(generator, products.next());
+            written++;
+        }
+        generator.writeEndArray();
+        return written;
+    }
+}
@@ -0,0 +1,51 @@
+package org.laboration3.resource.utils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.ext.MessageBodyReader;
+import jakarta.ws.rs.ext.MessageBodyWriter;
+import jakarta.ws.rs.ext.Provider;
+import org.laboration3.entities.Product;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+// Reads and writes a single product as Smile. Product lists are streamed by ProductJsonStream instead
+@Provider
+@Produces(ObjectMapperConvertDate.APPLICATION_SMILE)
+@Consumes(ObjectMapperConvertDate.APPLICATION_SMILE)
+public class ProductSmileProvider implements MessageBodyReader<Product>, MessageBodyWriter<Product> {
+
+    @Override
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return type == Product.class;
+    }
+
+    @Override
+    public Product readFrom(Class<Product> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                            MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException {
+        try {
+            return ObjectMapperConvertDate.smileProductReader().readValue(entityStream);
+        } catch (JsonProcessingException e) {
+            throw new BadRequestException("Ogiltig produkt: " + e.getOriginalMessage());
+        }
+    }
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return type == Product.class;
+    }
+
+    @Override
+    public void writeTo(Product product, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                        MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException {
+        ObjectMapperConvertDate.smileProductWriter().writeValue(entityStream, product);
+    }
+}
@@ -0,0 +1,87 @@
+package org.laboration3.resource.utils;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.core.Response;
+import org.jboss.resteasy.core.ResteasyContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Runs the handlers of endpoints that block, like writes waiting on the log fsync. In platform mode the
+// handler runs on the container thread as before, in virtual mode every request gets its own virtual
+// thread so a blocked write no longer holds one of the container's worker threads
+@ApplicationScoped
+public class RequestExecutor {
+
+    public static final String MODE_PROPERTY = "warehouse.request.threads";
+
+    public enum Mode {PLATFORM, VIRTUAL}
+
+    private final static Logger logger = LoggerFactory.getLogger(RequestExecutor.class);
+
+    // Null in platform mode
+    private final ExecutorService executor;
+
+    public RequestExecutor() {
+        this(Mode.valueOf(System.getProperty(MODE_PROPERTY, "platform").trim().toUpperCase()));
+    }
+
+    public RequestExecutor(Mode mode) {
+        this(mode == Mode.VIRTUAL ? virtualThreadPerTask() : null);
+    }
+
+    public RequestExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    // Resumes the suspended request with the handler's response, or with its exception so the
+    // exception mappers turn it into the same response as in platform mode
+    public void execute(AsyncResponse response, Callable<Response> handler) {
+        if (executor == null) {
+            resume(response, handler);
+        } else {
+            // The handler and the exception mappers look up @Context values through the request's context
+            // data, which only the thread that suspended the request has
+            Map<Class<?>, Object> context = ResteasyContext.getContextDataMap();
+            executor.execute(() -> {
+                ResteasyContext.CloseableContext level = ResteasyContext.addCloseableContextDataLevel(context);
+                try {
+                    resume(response, handler);
+                } finally {
+                    level.close();
+                }
+            });
+        }
+    }
+
+    private static void resume(AsyncResponse response, Callable<Response> handler) {
+        try {
+            response.resume(handler.call());
+        } catch (Throwable e) {
+            response.resume(e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    // Virtual threads need Java 21 at runtime while the code is compiled for 17, so the factory is looked up
+    private static ExecutorService virtualThreadPerTask() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Virtuella trådar stöds inte av Java {}, anrop körs på plattformstrådar", Runtime.version().feature());
+            return null;
+        }
+    }
+}
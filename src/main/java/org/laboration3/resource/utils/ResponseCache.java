@@ -0,0 +1,143 @@
+package org.laboration3.resource.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.laboration3.service.Version;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+// Serialized JSON for hot responses, tagged with the Warehouse version they were built from.
+// A change to the warehouse bumps exactly the versions it touches (the product, its categories and
+// the catalog), so only those entries stop matching. Eviction is Caffeine's size bounded W-TinyLFU
+@ApplicationScoped
+public class ResponseCache {
+
+    public static final String MAX_BYTES_PROPERTY = "warehouse.cache.max.bytes";
+    // Bytes for the key, the entry and Caffeine's node on top of the body
+    private static final int ENTRY_OVERHEAD = 96;
+
+    public record Key(String kind, String id) {
+    }
+
+    private record Entry(Version version, byte[] body) {
+    }
+
+    private final Cache<Key, Entry> entries;
+    private final long maxEntryBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ResponseCache() {
+        this(Long.getLong(MAX_BYTES_PROPERTY, 64L << 20));
+    }
+
+    public ResponseCache(long maxBytes) {
+        // One huge response would otherwise push out everything else
+        maxEntryBytes = maxBytes / 4;
+        entries = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .<Key, Entry>weigher((key, entry) -> entry.body().length + ENTRY_OVERHEAD)
+                .recordStats()
+                .build();
+    }
+
+    // The cached body if it was built from this exact version, otherwise null
+    public byte[] get(Key key, Version version) {
+        Entry entry = entries.getIfPresent(key);
+        if (entry != null && entry.version().equals(version)) {
+            hits.increment();
+            return entry.body();
+        }
+        misses.increment();
+        return null;
+    }
+
+    public void put(Key key, Version version, byte[] body) {
+        if (body.length <= maxEntryBytes) {
+            entries.put(key, new Entry(version, body));
+        }
+    }
+
+    // Writes the response as usual and keeps a copy of the bytes on the way, so a miss costs no
+    // extra serialization. Copying stops once the response is too large to be cached
+    public StreamingOutput capture(Key key, Version version, StreamingOutput body) {
+        return output -> {
+            CapturingOutputStream capturing = new CapturingOutputStream(output, maxEntryBytes);
+            body.write(capturing);
+            if (capturing.copy != null) {
+                put(key, version, capturing.copy.toByteArray());
+            }
+        };
+    }
+
+    public String toPrometheusText() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        long weight = entries.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+        double hitRatio = hitCount + missCount == 0 ? 0 : (double) hitCount / (hitCount + missCount);
+
+        StringBuilder text = new StringBuilder();
+        metric(text, "warehouse_response_cache_hits_total", "counter", "Responses served from the cache", hitCount);
+        metric(text, "warehouse_response_cache_misses_total", "counter", "Responses that had to be serialized", missCount);
+        metric(text, "warehouse_response_cache_evictions_total", "counter", "Entries evicted to stay within the size bound",
+                entries.stats().evictionCount());
+        metric(text, "warehouse_response_cache_entries", "gauge", "Cached responses", entries.estimatedSize());
+        metric(text, "warehouse_response_cache_bytes", "gauge", "Approximate size of the cached responses", weight);
+        text.append("# HELP warehouse_response_cache_hit_ratio Share of lookups served from the cache\n")
+                .append("# TYPE warehouse_response_cache_hit_ratio gauge\n")
+                .append("warehouse_response_cache_hit_ratio ").append(String.format(Locale.ROOT, "%.4f", hitRatio)).append('\n');
+        return text.toString();
+    }
+
+    private static void metric(StringBuilder text, String name, String type, String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(' ').append(type).append('\n')
+                .append(name).append(' ').append(value).append('\n');
+    }
+
+    private static class CapturingOutputStream extends OutputStream {
+        private final OutputStream target;
+        private final long limit;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream(8192);
+
+        CapturingOutputStream(OutputStream target, long limit) {
+            this.target = target;
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target.write(b);
+            if (copy != null) {
+                copy.write(b);
+                dropCopyIfTooLarge();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target.write(b, off, len);
+            if (copy != null) {
+                copy.write(b, off, len);
+                dropCopyIfTooLarge();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target.flush();
+        }
+
+        private void dropCopyIfTooLarge() {
+            if (copy.size() > limit) {
+                copy = null;
+            }
+        }
+    }
+}
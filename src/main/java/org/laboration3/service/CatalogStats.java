@@ -0,0 +1,82 @@
+package org.laboration3.service;
+
+import org.laboration3.entities.Categories;
+import org.laboration3.entities.Product;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+// Figures for the whole catalog and for every category, all from the same pass over it.
+// created and modified count the products created or changed at or after since
+public record CatalogStats(LocalDateTime since, Figures total, Map<Categories, Figures> categories) {
+
+    // ratings[0] is the number of products rated 1, ratings[9] those rated 10
+    public record Figures(long products, double averageRating, long[] ratings, long created, long modified) {
+
+        static Figures of(long[] ratings, long created, long modified) {
+            long products = 0;
+            long ratingSum = 0;
+            for (int i = 0; i < ratings.length; i++) {
+                products += ratings[i];
+                ratingSum += (i + 1) * ratings[i];
+            }
+            return new Figures(products, products == 0 ? 0 : (double) ratingSum / products, ratings, created, modified);
+        }
+    }
+
+    // Primitive counters per category, indexed by the category ordinal. One per part of a parallel pass
+    static final class Tally {
+        private static final Categories[] CATEGORIES = Categories.values();
+        private static final int RATINGS = 10;
+
+        private final LocalDateTime since;
+        private final long[] ratingCounts = new long[CATEGORIES.length * RATINGS];
+        private final long[] createdCounts = new long[CATEGORIES.length];
+        private final long[] modifiedCounts = new long[CATEGORIES.length];
+
+        Tally(LocalDateTime since) {
+            this.since = since;
+        }
+
+        void add(Product p) {
+            int category = p.category().ordinal();
+            ratingCounts[category * RATINGS + p.rating() - 1]++;
+            if (!p.createdDate().isBefore(since)) {
+                createdCounts[category]++;
+            }
+            if (!p.createdDate().isEqual(p.lastModifiedDate()) && !p.lastModifiedDate().isBefore(since)) {
+                modifiedCounts[category]++;
+            }
+        }
+
+        void merge(Tally other) {
+            for (int i = 0; i < ratingCounts.length; i++) {
+                ratingCounts[i] += other.ratingCounts[i];
+            }
+            for (int i = 0; i < CATEGORIES.length; i++) {
+                createdCounts[i] += other.createdCounts[i];
+                modifiedCounts[i] += other.modifiedCounts[i];
+            }
+        }
+
+        CatalogStats toStats() {
+            Map<Categories, Figures> byCategory = new EnumMap<>(Categories.class);
+            long[] totalRatings = new long[RATINGS];
+            long totalCreated = 0;
+            long totalModified = 0;
+            for (Categories category : CATEGORIES) {
+                int c = category.ordinal();
+                long[] ratings = Arrays.copyOfRange(ratingCounts, c * RATINGS, (c + 1) * RATINGS);
+                for (int i = 0; i < RATINGS; i++) {
+                    totalRatings[i] += ratings[i];
+                }
+                totalCreated += createdCounts[c];
+                totalModified += modifiedCounts[c];
+                byCategory.put(category, Figures.of(ratings, createdCounts[c], modifiedCounts[c]));
+            }
+            return new CatalogStats(since, Figures.of(totalRatings, totalCreated, totalModified), byCategory);
+        }
+    }
+}
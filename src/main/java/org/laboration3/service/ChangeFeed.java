@@ -0,0 +1,62 @@
+package org.laboration3.service;
+
+import org.laboration3.entities.Product;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// The latest changes to the catalog in a ring buffer, numbered by the version number the change got.
+// Change n is in slot n % capacity until change n + capacity takes the slot. Writers only store a
+// reference and call the listeners, readers keep their own position and never hold anyone up
+public class ChangeFeed {
+
+    public static final String CAPACITY_PROPERTY = "warehouse.changes.buffer.size";
+
+    public enum Kind {ADDED, MODIFIED}
+
+    public record Change(Kind kind, Version version, Product product) {
+        public long number() {
+            return version.number();
+        }
+    }
+
+    private final AtomicReferenceArray<Change> ring;
+    private final int mask;
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    ChangeFeed(int capacity) {
+        // Rounded up to a power of two so the slot is a mask instead of a division
+        int slots = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        ring = new AtomicReferenceArray<>(slots);
+        mask = slots - 1;
+    }
+
+    public int getCapacity() {
+        return ring.length();
+    }
+
+    // Called once per version number, from inside the compute of the changed product. Numbers are
+    // handed out before the changes are published, so change n can show up after change n + 1
+    void publish(Change change) {
+        ring.set((int) (change.number() & mask), change);
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    // Listeners run on the writer's thread and must return at once, e.g. by waking up a reader thread
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    // What is in the slot of change number: the change itself, an older change (or null) if number
+    // hasn't been published yet, or a newer change if number has already been overwritten
+    public Change slot(long number) {
+        return ring.get((int) (number & mask));
+    }
+}
@@ -0,0 +1,122 @@
+package org.laboration3.service;
+
+import org.laboration3.entities.Product;
+
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.regex.Pattern;
+
+// Every word of every product name, folded to lower case without diacritics, sorted by word and then id.
+// The words starting with a prefix are one contiguous range, so a search walks only the range it needs
+class NameIndex {
+
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+    private final NavigableSet<Term> terms = new ConcurrentSkipListSet<>();
+
+    record Term(String word, int id) implements Comparable<Term> {
+        @Override
+        public int compareTo(Term other) {
+            int byWord = word.compareTo(other.word);
+            return byWord != 0 ? byWord : Integer.compare(id, other.id);
+        }
+    }
+
+    void update(Product previous, Product current) {
+        if (previous != null && previous.name().equals(current.name())) {
+            return;
+        }
+        if (previous != null) {
+            for (String word : words(previous.name())) {
+                terms.remove(new Term(word, previous.id()));
+            }
+        }
+        for (String word : words(current.name())) {
+            terms.add(new Term(word, current.id()));
+        }
+    }
+
+    // For a bulk load into an empty index, the terms are added in order
+    void addAll(Collection<Product> products) {
+        List<Term> all = new ArrayList<>(products.size() * 2);
+        for (Product p : products) {
+            for (String word : words(p.name())) {
+                all.add(new Term(word, p.id()));
+            }
+        }
+        all.sort(null);
+        terms.addAll(all);
+    }
+
+    // Ids of the names where every query word starts a word of the name. The range of the longest query
+    // word is walked, it is the narrowest, and only until offset + limit ids have matched. Ranked by the
+    // word that matched: the query word itself first, then its completions alphabetically, then by id
+    List<Integer> search(String query, int offset, int limit, Map<Integer, Product> products) {
+        List<String> queryWords = words(query);
+        if (queryWords.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        String driving = queryWords.stream().max(Comparator.comparingInt(String::length)).orElseThrow();
+
+        List<Integer> found = new ArrayList<>(Math.min(limit, 1024));
+        Set<Integer> seen = new HashSet<>();
+        int skipped = 0;
+        for (Term term : terms.tailSet(new Term(driving, Integer.MIN_VALUE), true)) {
+            if (!term.word().startsWith(driving)) {
+                break;
+            }
+            // A name with two words starting with the prefix is found twice
+            if (!seen.add(term.id())) {
+                continue;
+            }
+            Product p = products.get(term.id());
+            // The product can have been renamed after the term was read
+            if (p == null || !matchesAll(words(p.name()), queryWords)) {
+                continue;
+            }
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            found.add(term.id());
+            if (found.size() == limit) {
+                break;
+            }
+        }
+        return found;
+    }
+
+    private static boolean matchesAll(List<String> nameWords, List<String> queryWords) {
+        for (String queryWord : queryWords) {
+            if (nameWords.stream().noneMatch(word -> word.startsWith(queryWord))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // "Hårblekning, Öland" gives [harblekning, oland]
+    static List<String> words(String text) {
+        String folded = fold(text);
+        List<String> words = new ArrayList<>(2);
+        for (String word : WORD_SEPARATOR.split(folded)) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    private static String fold(String text) {
+        // Most names are plain ASCII and need no decomposition
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) > 0x7f) {
+                String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+                return COMBINING_MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+            }
+        }
+        return text.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,291 @@
+package org.laboration3.service;
+
+import org.laboration3.entities.Product;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+// Append-only log of product states, split in numbered segments: products.log.000001, products.log.000002, ...
+// Every record is the full product after a mutation, so replaying a record twice or on top of a newer
+// snapshot ends in the same state. Record layout: payload length, CRC32C of the payload, payload.
+public class ProductLog implements AutoCloseable {
+
+    public enum Durability {
+        // A write is acknowledged once it has been fsynced, concurrent writers share one fsync
+        SYNC,
+        // A write is acknowledged once it is buffered, flush() is called periodically instead
+        ASYNC
+    }
+
+    private static final String SEGMENT_PREFIX = "products.log.";
+    private static final int RECORD_HEADER_BYTES = 4 + 4;
+    private static final byte PRODUCT_RECORD = 1;
+
+    private final static Logger logger = LoggerFactory.getLogger(ProductLog.class);
+
+    private final Path directory;
+    private final Durability durability;
+
+    // Guarded by this: the records appended since the last flush and the segment they belong to
+    private final List<Path> segments;
+    private FileChannel channel;
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(1 << 16);
+    private long appended;
+    private long appendedToActiveSegment;
+
+    // Guarded by flushLock, which is always taken before this. Not a monitor since writers wait on it
+    // during the fsync, and a virtual thread blocked on a monitor holds on to its carrier thread
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private volatile long durable;
+    private volatile long syncCount;
+    // The records taken out of pending that are not forced yet and where the forced part of the active
+    // segment ends. A failed flush keeps them, the next one writes them again from there
+    private byte[] unforced = new byte[0];
+    private long forcedBytes;
+
+    private ProductLog(Path directory, Durability durability, List<Path> segments) throws IOException {
+        this.directory = directory;
+        this.durability = durability;
+        this.segments = segments;
+        openSegment();
+    }
+
+    // Older segments are kept for replay, new records always go to a fresh segment so a torn
+    // record at the end of the previous run is never followed by new ones in the same file
+    public static ProductLog open(Path directory, Durability durability) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*")) {
+            files.forEach(segments::add);
+        }
+        segments.removeIf(segment -> segmentNumber(segment) < 0);
+        segments.sort(Comparator.comparingLong(ProductLog::segmentNumber));
+        return new ProductLog(directory, durability, segments);
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public long getSyncCount() {
+        return syncCount;
+    }
+
+    // Hands every logged product to apply, oldest first. Replay stops at the first record of a
+    // segment that is cut short or fails its checksum, that record was never acknowledged
+    public int replay(Consumer<Product> apply) throws IOException {
+        List<Path> sealed;
+        synchronized (this) {
+            sealed = new ArrayList<>(segments.subList(0, segments.size() - 1));
+        }
+
+        int replayed = 0;
+        for (Path segment : sealed) {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment));
+            CRC32C checksum = new CRC32C();
+
+            while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+                int start = buffer.position();
+                int length = buffer.getInt();
+                int expected = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    buffer.position(start);
+                    break;
+                }
+                checksum.reset();
+                checksum.update(buffer.slice(buffer.position(), length));
+                if ((int) checksum.getValue() != expected) {
+                    buffer.position(start);
+                    break;
+                }
+                if (buffer.get() == PRODUCT_RECORD) {
+                    apply.accept(ProductSnapshot.readProduct(buffer));
+                    replayed++;
+                }
+                buffer.position(start + RECORD_HEADER_BYTES + length);
+            }
+
+            if (buffer.hasRemaining()) {
+                logger.warn("{} byte i slutet av {} kunde inte läsas och hoppades över", buffer.remaining(), segment);
+            }
+        }
+        return replayed;
+    }
+
+    // Called while the product is locked in the store, so records for one product keep their order
+    public void append(Product p) {
+        byte[] record = encode(p);
+        synchronized (this) {
+            pending.write(record, 0, record.length);
+            appended++;
+            appendedToActiveSegment++;
+        }
+    }
+
+    // Returns once everything appended so far is as durable as the durability mode promises
+    public void awaitDurable() {
+        if (durability == Durability.ASYNC) {
+            return;
+        }
+        long target;
+        synchronized (this) {
+            target = appended;
+        }
+        flush(target);
+    }
+
+    public void flush() {
+        long target;
+        synchronized (this) {
+            target = appended;
+        }
+        flush(target);
+    }
+
+    // Group commit: the first writer in writes and syncs everything buffered so far, the writers
+    // that queued up behind it find their records already durable when they get the lock
+    private void flush(long target) {
+        flushLock.lock();
+        try {
+            if (durable >= target) {
+                return;
+            }
+            byte[] batch;
+            long upTo;
+            FileChannel segment;
+            synchronized (this) {
+                batch = pending.toByteArray();
+                pending.reset();
+                upTo = appended;
+                segment = channel;
+            }
+            boolean retry = unforced.length > 0;
+            if (retry) {
+                byte[] records = new byte[unforced.length + batch.length];
+                System.arraycopy(unforced, 0, records, 0, unforced.length);
+                System.arraycopy(batch, 0, records, unforced.length, batch.length);
+                batch = records;
+            }
+            unforced = batch;
+            try {
+                // Whatever the failed write left behind may be half a record, it is written over
+                if (retry) {
+                    segment.truncate(forcedBytes);
+                    segment.position(forcedBytes);
+                }
+                write(segment, batch);
+                segment.force(false);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Kunde inte skriva till loggen i " + directory, e);
+            }
+            forcedBytes += batch.length;
+            unforced = new byte[0];
+            syncCount++;
+            durable = upTo;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    public synchronized boolean hasRecordsToCompact() {
+        return segments.size() > 1 || appendedToActiveSegment > 0;
+    }
+
+    // Seals the active segment and starts a new one. The sealed segments can be deleted once a
+    // snapshot taken after this call has been written
+    public List<Path> rotate() throws IOException {
+        flushLock.lock();
+        try {
+            flush();
+            synchronized (this) {
+                channel.close();
+                List<Path> sealed = new ArrayList<>(segments);
+                openSegment();
+                return sealed;
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    public void deleteSegments(List<Path> sealed) throws IOException {
+        synchronized (this) {
+            segments.removeAll(sealed);
+        }
+        for (Path segment : sealed) {
+            Files.deleteIfExists(segment);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushLock.lock();
+        try {
+            flush();
+            synchronized (this) {
+                channel.close();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void openSegment() throws IOException {
+        long number = segments.isEmpty() ? 1 : segmentNumber(segments.get(segments.size() - 1)) + 1;
+        Path segment = directory.resolve(String.format("%s%06d", SEGMENT_PREFIX, number));
+        channel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        // Otherwise the fsyncs of its records could be for a file the directory doesn't have after a crash
+        ProductSnapshot.syncDirectory(directory);
+        segments.add(segment);
+        appendedToActiveSegment = 0;
+        forcedBytes = 0;
+    }
+
+    // -1 for files that only share the prefix, like a copy someone left in the directory
+    private static long segmentNumber(Path segment) {
+        String suffix = segment.getFileName().toString().substring(SEGMENT_PREFIX.length());
+        return suffix.matches("\\d+") ? Long.parseLong(suffix) : -1;
+    }
+
+    private static void write(FileChannel segment, byte[] batch) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(batch);
+        while (buffer.hasRemaining()) {
+            segment.write(buffer);
+        }
+    }
+
+    private static byte[] encode(Product p) {
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+            DataOutputStream output = new DataOutputStream(record);
+            output.writeInt(0);
+            output.writeInt(0);
+            output.writeByte(PRODUCT_RECORD);
+            ProductSnapshot.writeProduct(output, p);
+
+            byte[] bytes = record.toByteArray();
+            int length = bytes.length - RECORD_HEADER_BYTES;
+            CRC32C checksum = new CRC32C();
+            checksum.update(bytes, RECORD_HEADER_BYTES, length);
+            ByteBuffer.wrap(bytes).putInt(length).putInt((int) checksum.getValue());
+            return bytes;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
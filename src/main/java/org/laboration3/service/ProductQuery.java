@@ -0,0 +1,83 @@
+package org.laboration3.service;
+
+import org.laboration3.entities.Categories;
+import org.laboration3.entities.Product;
+
+import java.time.LocalDateTime;
+import java.util.Comparator;
+
+// Predicates for Warehouse.query, null means no limit on that field. Ids and ratings are inclusive, createdAfter
+// is strictly after like getProductCreatedAfterDate and name matches like searchByName
+public record ProductQuery(Integer minId, Integer maxId, Categories category, Integer minRating, Integer maxRating,
+                           LocalDateTime createdAfter, String name, Sort sort, int limit) {
+
+    public enum Sort {
+        ID(Comparator.comparingInt(Product::id)),
+        NAME(Comparator.comparing(Product::name, String.CASE_INSENSITIVE_ORDER).thenComparingInt(Product::id)),
+        CREATED(Comparator.comparing(Product::createdDate).thenComparingInt(Product::id)),
+        // Exactly CREATED backwards, so the created index can be walked from the end
+        NEWEST(CREATED.order.reversed()),
+        RATING(Comparator.comparingInt(Product::rating).reversed().thenComparingInt(Product::id));
+
+        private final Comparator<Product> order;
+
+        Sort(Comparator<Product> order) {
+            this.order = order;
+        }
+
+        public Comparator<Product> order() {
+            return order;
+        }
+    }
+
+    public ProductQuery {
+        if (sort == null) {
+            throw new IllegalArgumentException("Sortering saknas");
+        }
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Ogiltig limit: " + limit);
+        }
+    }
+
+    public static ProductQuery all() {
+        return new ProductQuery(null, null, null, null, null, null, null, Sort.ID, Integer.MAX_VALUE);
+    }
+
+    public ProductQuery withIds(Integer minId, Integer maxId) {
+        return new ProductQuery(minId, maxId, category, minRating, maxRating, createdAfter, name, sort, limit);
+    }
+
+    public ProductQuery withCategory(Categories category) {
+        return new ProductQuery(minId, maxId, category, minRating, maxRating, createdAfter, name, sort, limit);
+    }
+
+    public ProductQuery withRatings(Integer minRating, Integer maxRating) {
+        return new ProductQuery(minId, maxId, category, minRating, maxRating, createdAfter, name, sort, limit);
+    }
+
+    public ProductQuery withCreatedAfter(LocalDateTime createdAfter) {
+        return new ProductQuery(minId, maxId, category, minRating, maxRating, createdAfter, name, sort, limit);
+    }
+
+    public ProductQuery withName(String name) {
+        return new ProductQuery(minId, maxId, category, minRating, maxRating, createdAfter, name, sort, limit);
+    }
+
+    public ProductQuery sortedBy(Sort sort) {
+        return new ProductQuery(minId, maxId, category, minRating, maxRating, createdAfter, name, sort, limit);
+    }
+
+    public ProductQuery limitedTo(int limit) {
+        return new ProductQuery(minId, maxId, category, minRating, maxRating, createdAfter, name, sort, limit);
+    }
+
+    // Everything but the name, a name is always looked up in the NameIndex which checks it
+    boolean matches(Product p) {
+        return (minId == null || p.id() >= minId)
+                && (maxId == null || p.id() <= maxId)
+                && (category == null || p.category() == category)
+                && (minRating == null || p.rating() >= minRating)
+                && (maxRating == null || p.rating() <= maxRating)
+                && (createdAfter == null || p.createdDate().isAfter(createdAfter));
+    }
+}
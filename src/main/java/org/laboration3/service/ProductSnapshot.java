@@ -0,0 +1,150 @@
+package org.laboration3.service;
+
+import org.laboration3.entities.Categories;
+import org.laboration3.entities.Product;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+// Compact binary copy of the product store:
+//   magic, format version, then per product: id, category, rating, created, modified, name
+//   trailer: product count and a CRC32C over everything before the checksum
+// Dates are stored as UTC epoch second + nano so they come back exactly as they were written.
+public class ProductSnapshot {
+
+    private static final int MAGIC = 0x57485331; // "WHS1"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    private static final int TRAILER_BYTES = 4 + 8;
+    private static final boolean WINDOWS = System.getProperty("os.name", "").startsWith("Windows");
+
+    private final Path file;
+
+    public ProductSnapshot(Path file) {
+        this.file = file;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    // Written to a temporary file that replaces the old snapshot only once it is complete and synced,
+    // so a crash while writing leaves the previous snapshot in place
+    public int write(Iterable<Product> products) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        CRC32C checksum = new CRC32C();
+        int count = 0;
+
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream output = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), checksum));
+
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            for (Product p : products) {
+                writeProduct(output, p);
+                count++;
+            }
+            output.writeInt(count);
+            // The checksum itself is not part of what it covers
+            output.flush();
+            new DataOutputStream(Channels.newOutputStream(channel)).writeLong(checksum.getValue());
+            channel.force(true);
+        }
+
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // The rename is only durable once the directory is, the log segments are deleted after this
+        syncDirectory(file.toAbsolutePath().getParent());
+        return count;
+    }
+
+    // Makes files created or renamed in the directory survive a crash. Windows can't open a directory
+    // as a channel, and NTFS journals the change itself
+    static void syncDirectory(Path directory) throws IOException {
+        if (WINDOWS) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    // Reads through a memory mapping, the checksum is verified before any product is handed out
+    public int read(Consumer<Product> restore) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES + TRAILER_BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + file + " har ogiltig storlek " + size);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            CRC32C checksum = new CRC32C();
+            checksum.update(buffer.duplicate().limit((int) size - 8));
+            if (checksum.getValue() != buffer.getLong((int) size - 8)) {
+                throw new IOException("Snapshot " + file + " är skadad, checksumman stämmer inte");
+            }
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+                throw new IOException("Snapshot " + file + " har okänt format");
+            }
+
+            int count = buffer.getInt((int) size - TRAILER_BYTES);
+            buffer.position(HEADER_BYTES);
+            for (int i = 0; i < count; i++) {
+                restore.accept(readProduct(buffer));
+            }
+            if (buffer.position() != size - TRAILER_BYTES) {
+                throw new IOException("Snapshot " + file + " innehåller inte " + count + " produkter");
+            }
+            return count;
+        }
+    }
+
+    static void writeProduct(DataOutput output, Product p) throws IOException {
+        byte[] name = p.name().getBytes(StandardCharsets.UTF_8);
+
+        output.writeInt(p.id());
+        output.writeByte(p.category().ordinal());
+        output.writeByte(p.rating());
+        writeDate(output, p.createdDate());
+        writeDate(output, p.lastModifiedDate());
+        output.writeInt(name.length);
+        output.write(name);
+    }
+
+    static Product readProduct(ByteBuffer buffer) {
+        int id = buffer.getInt();
+        Categories category = Categories.values()[buffer.get()];
+        int rating = buffer.get();
+        LocalDateTime created = readDate(buffer);
+        LocalDateTime modified = readDate(buffer);
+        byte[] name = new byte[buffer.getInt()];
+        buffer.get(name);
+
+        return new Product(id, new String(name, StandardCharsets.UTF_8), category, rating, created, modified);
+    }
+
+    private static void writeDate(DataOutput output, LocalDateTime date) throws IOException {
+        output.writeLong(date.toEpochSecond(ZoneOffset.UTC));
+        output.writeInt(date.getNano());
+    }
+
+    private static LocalDateTime readDate(ByteBuffer buffer) {
+        long epochSecond = buffer.getLong();
+        int nano = buffer.getInt();
+        return LocalDateTime.ofEpochSecond(epochSecond, nano, ZoneOffset.UTC);
+    }
+}
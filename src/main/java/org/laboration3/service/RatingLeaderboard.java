@@ -0,0 +1,121 @@
+package org.laboration3.service;
+
+import org.laboration3.entities.Product;
+
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+// Products per (year, month) of createdDate, each month sorted by rating and then recency,
+// so the top K of a month is the first K entries of its set
+class RatingLeaderboard {
+
+    static final int RETAINED_MONTHS = 12;
+
+    private final NavigableMap<YearMonth, NavigableSet<Entry>> months = new ConcurrentSkipListMap<>();
+
+    // Natural order is best first: highest rating, then the most recently created
+    record Entry(int rating, LocalDateTime createdDate, int id) implements Comparable<Entry> {
+        static Entry of(Product p) {
+            return new Entry(p.rating(), p.createdDate(), p.id());
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (rating != other.rating) {
+                return Integer.compare(other.rating, rating);
+            }
+            int byDate = other.createdDate.compareTo(createdDate);
+            return byDate != 0 ? byDate : Integer.compare(id, other.id);
+        }
+    }
+
+    void update(Product previous, Product current) {
+        if (previous != null && previous.rating() == current.rating()) {
+            return;
+        }
+        YearMonth month = YearMonth.from(current.createdDate());
+        if (month.isBefore(oldestRetainedMonth())) {
+            return;
+        }
+        if (previous != null) {
+            NavigableSet<Entry> entries = months.get(month);
+            if (entries != null) {
+                entries.remove(Entry.of(previous));
+            }
+        }
+        months.computeIfAbsent(month, m -> new ConcurrentSkipListSet<>()).add(Entry.of(current));
+        evictOldMonths();
+    }
+
+    // For a bulk load into an empty leaderboard, every month's entries are added in order
+    void addAll(Collection<Product> products) {
+        YearMonth oldest = oldestRetainedMonth();
+        Map<YearMonth, List<Entry>> byMonth = new HashMap<>();
+        for (Product p : products) {
+            YearMonth month = YearMonth.from(p.createdDate());
+            if (!month.isBefore(oldest)) {
+                byMonth.computeIfAbsent(month, m -> new ArrayList<>()).add(Entry.of(p));
+            }
+        }
+        byMonth.forEach((month, entries) -> {
+            entries.sort(null);
+            months.computeIfAbsent(month, m -> new ConcurrentSkipListSet<>()).addAll(entries);
+        });
+    }
+
+    // Lazy walk over one month from the best entry down
+    Iterator<Entry> ranked(YearMonth month) {
+        NavigableSet<Entry> entries = months.get(month);
+        return entries == null ? Collections.emptyIterator() : entries.iterator();
+    }
+
+    // Best K entries created between from and to (inclusive), merged across the months in the window
+    List<Entry> top(YearMonth from, YearMonth to, int k) {
+        Collection<NavigableSet<Entry>> window = months.subMap(from, true, to, true).values();
+        if (window.size() == 1) {
+            return first(window.iterator().next().iterator(), k);
+        }
+
+        // K-way merge, every month is already sorted
+        PriorityQueue<Map.Entry<Entry, Iterator<Entry>>> heads =
+                new PriorityQueue<>(Map.Entry.comparingByKey());
+        for (NavigableSet<Entry> entries : window) {
+            Iterator<Entry> iterator = entries.iterator();
+            if (iterator.hasNext()) {
+                heads.add(new AbstractMap.SimpleEntry<>(iterator.next(), iterator));
+            }
+        }
+
+        List<Entry> top = new ArrayList<>(Math.min(k, 1024));
+        while (top.size() < k && !heads.isEmpty()) {
+            Map.Entry<Entry, Iterator<Entry>> head = heads.poll();
+            top.add(head.getKey());
+            if (head.getValue().hasNext()) {
+                heads.add(new AbstractMap.SimpleEntry<>(head.getValue().next(), head.getValue()));
+            }
+        }
+        return top;
+    }
+
+    private static List<Entry> first(Iterator<Entry> entries, int k) {
+        List<Entry> top = new ArrayList<>(Math.min(k, 1024));
+        while (top.size() < k && entries.hasNext()) {
+            top.add(entries.next());
+        }
+        return top;
+    }
+
+    private static YearMonth oldestRetainedMonth() {
+        return YearMonth.now().minusMonths(RETAINED_MONTHS - 1);
+    }
+
+    private void evictOldMonths() {
+        YearMonth oldest = oldestRetainedMonth();
+        if (!months.isEmpty() && months.firstKey().isBefore(oldest)) {
+            months.headMap(oldest, false).clear();
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package org.laboration3.service;
+
+import java.time.LocalDateTime;
+
+// Version of the catalog, a category or a single product. number grows with every change in this
+// warehouse instance, generation is new for every instance so numbers from before a restart never match
+public record Version(long generation, long number, LocalDateTime lastModified) {
+}
@@ -1,88 +1,727 @@
 package org.laboration3.service;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.context.Initialized;
+import jakarta.enterprise.event.Observes;
 import org.laboration3.entities.Categories;
 import org.laboration3.entities.Product;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDateTime;
+import java.time.YearMonth;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 @ApplicationScoped
 public class Warehouse {
 
-    private final List<Product> productsArr = new CopyOnWriteArrayList<>();
+    // Persistence is off unless a data directory is configured, e.g. -Dwarehouse.data.dir=/opt/warehouse
+    public static final String DATA_DIR_PROPERTY = "warehouse.data.dir";
+    public static final String SNAPSHOT_INTERVAL_PROPERTY = "warehouse.snapshot.interval.seconds";
+    public static final String LOG_DURABILITY_PROPERTY = "warehouse.log.durability";
+    public static final String STATS_PARALLEL_ROWS_PROPERTY = "warehouse.stats.parallel.rows";
+    // Testing a product while iterating the store, relative to resolving one from an index
+    private static final double ROW_SCAN_COST = 0.3;
+    // Products the planner's estimates look at, at random ids over the whole id range
+    private static final int SAMPLED_PRODUCTS = 1024;
+    private static final String SNAPSHOT_FILE = "products.snapshot";
+    private static final long ASYNC_FLUSH_MILLIS = 100;
+
+    private final static Logger logger = LoggerFactory.getLogger(Warehouse.class);
+
+    // Primary store keyed by product id, insertion order is kept separately for getProductsArr
+    private final Map<Integer, Product> products = new ConcurrentHashMap<>();
+    private final Queue<Integer> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final NavigableSet<Integer> sortedIds = new ConcurrentSkipListSet<>();
+
+    // Secondary indexes, only updated from inside the compute of the product they belong to
+    private final Map<Categories, NavigableSet<Integer>> categoryIndex = new EnumMap<>(Categories.class);
+    private final Map<Categories, AtomicInteger> categoryCounts = new EnumMap<>(Categories.class);
+    private final NavigableSet<CreatedKey> createdIndex = new ConcurrentSkipListSet<>();
+    private final Set<Integer> modifiedIds = ConcurrentHashMap.newKeySet();
+    private final Map<String, LongAdder> firstLetterCounts = new ConcurrentHashMap<>();
+    private final RatingLeaderboard leaderboard = new RatingLeaderboard();
+    private final NameIndex nameIndex = new NameIndex();
+
+    // Versions for conditional requests, only published once the product they cover is in the map. The
+    // catalog and category versions are numbered by publishedChange, so version n covers every change up to n
+    private final long generation = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+    private final AtomicLong changes = new AtomicLong();
+    private final AtomicReference<Version> catalogVersion;
+    private final Map<Categories, AtomicReference<Version>> categoryVersions = new EnumMap<>(Categories.class);
+    // Published changes the versions don't cover yet, guarded by the change index like publishedChange
+    private LocalDateTime latestModified;
+    private final Map<Categories, Uncovered> uncoveredChanges = new EnumMap<>(Categories.class);
+    private final Map<Integer, Version> productVersions = new ConcurrentHashMap<>();
+    // Versions handed out by a compute that hasn't been published yet, for the next compute of the same product
+    private final Map<Integer, Version> pendingVersions = new ConcurrentHashMap<>();
+
+    // Product ids by the number of their latest published version. A number is in flight from its compute
+    // until it is published, publishedChange stays below the oldest one, so every change up to it is either
+    // in the index or replaced there by a later change to the same product. Both are guarded by the index
+    private final NavigableMap<Long, Integer> changeIndex = new ConcurrentSkipListMap<>();
+    private final NavigableSet<Long> changesInFlight = new TreeSet<>();
+    private volatile long publishedChange;
+    private final ChangeFeed changeFeed = new ChangeFeed(Integer.getInteger(ChangeFeed.CAPACITY_PROPERTY, 1 << 16));
+
+    private ProductSnapshot snapshot;
+    private ProductLog log;
+    // Writers share it from their compute until it has returned, rotate takes it alone. Every record in a
+    // sealed segment then belongs to a product already in the map, so the snapshot that follows has it
+    private final ReadWriteLock rotation = new ReentrantReadWriteLock();
+    private ScheduledExecutorService persistenceExecutor;
+    // Catalogs from this size have their stats counted on the common fork-join pool
+    private final int statsParallelRows = Integer.getInteger(STATS_PARALLEL_ROWS_PROPERTY, 1 << 16);
+
+    public Warehouse() {
+        Version initial = new Version(generation, 0, LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS));
+        catalogVersion = new AtomicReference<>(initial);
+        latestModified = initial.lastModified();
+        for (Categories category : Categories.values()) {
+            categoryIndex.put(category, new ConcurrentSkipListSet<>());
+            categoryCounts.put(category, new AtomicInteger());
+            categoryVersions.put(category, new AtomicReference<>(initial));
+            uncoveredChanges.put(category, new Uncovered(initial.lastModified()));
+        }
+    }
+
+    // Observing startup makes the container create the bean at deploy instead of on the first request
+    void onStartup(@Observes @Initialized(ApplicationScoped.class) Object event) {
+    }
+
+    @PostConstruct
+    void startPersistence() {
+        String dataDir = System.getProperty(DATA_DIR_PROPERTY);
+        if (dataDir == null || dataDir.isBlank()) {
+            return;
+        }
+        ProductLog.Durability durability = ProductLog.Durability.valueOf(
+                System.getProperty(LOG_DURABILITY_PROPERTY, "sync").toUpperCase());
+        try {
+            openPersistence(Files.createDirectories(Paths.get(dataDir)), durability);
+        } catch (IOException e) {
+            throw new IllegalStateException("Kunde inte läsa lagret från " + dataDir, e);
+        }
+
+        long interval = Long.getLong(SNAPSHOT_INTERVAL_PROPERTY, 60);
+        persistenceExecutor = Executors.newScheduledThreadPool(2, r -> {
+            Thread thread = new Thread(r, "warehouse-persistence");
+            thread.setDaemon(true);
+            return thread;
+        });
+        persistenceExecutor.scheduleWithFixedDelay(this::compactScheduled, interval, interval, TimeUnit.SECONDS);
+        if (durability == ProductLog.Durability.ASYNC) {
+            persistenceExecutor.scheduleWithFixedDelay(log::flush, ASYNC_FLUSH_MILLIS, ASYNC_FLUSH_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Restores the latest snapshot, replays the log written after it and logs every mutation from now on
+    public void openPersistence(Path directory, ProductLog.Durability durability) throws IOException {
+        snapshot = new ProductSnapshot(directory.resolve(SNAPSHOT_FILE));
+        restoreSnapshot(snapshot);
+
+        ProductLog opened = ProductLog.open(directory, durability);
+        int replayed = opened.replay(this::apply);
+        if (replayed > 0) {
+            logger.info("{} ändringar lästes in från loggen i {}", replayed, directory);
+        }
+        log = opened;
+    }
+
+    @PreDestroy
+    void stopPersistence() {
+        if (persistenceExecutor == null) {
+            return;
+        }
+        persistenceExecutor.shutdown();
+        try {
+            persistenceExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compactScheduled();
+        try {
+            log.close();
+        } catch (IOException e) {
+            logger.error("Kunde inte stänga loggen", e);
+        }
+    }
+
+    private void compactScheduled() {
+        try {
+            compact();
+        } catch (IOException | UncheckedIOException e) {
+            logger.error("Kunde inte skriva snapshot till {}", snapshot.getFile(), e);
+        }
+    }
+
+    // Folds the log into a new snapshot. Writers keep going to a fresh log segment meanwhile, and the
+    // old segments are only deleted once the snapshot that covers them is in place
+    public void compact() throws IOException {
+        if (!log.hasRecordsToCompact()) {
+            return;
+        }
+        List<Path> sealed;
+        rotation.writeLock().lock();
+        try {
+            sealed = log.rotate();
+        } finally {
+            rotation.writeLock().unlock();
+        }
+        int written = writeSnapshot(snapshot);
+        log.deleteSegments(sealed);
+        logger.debug("Snapshot med {} produkter skrevs till {}", written, snapshot.getFile());
+    }
+
+    // Products are immutable and the store is read without locks, so writers are never blocked.
+    // Every product is written as it was at some point during the snapshot, in insertion order.
+    public int writeSnapshot(ProductSnapshot snapshot) throws IOException {
+        return snapshot.write(() -> insertionOrder.stream()
+                .map(products::get)
+                .filter(Objects::nonNull)
+                .iterator());
+    }
+
+    // Only for an empty warehouse, at startup before any request is served.
+    // A snapshot that fails its checksum is moved aside so the next snapshot can't overwrite it
+    public int restoreSnapshot(ProductSnapshot snapshot) throws IOException {
+        if (!products.isEmpty()) {
+            throw new IllegalStateException("Snapshot kan bara läsas in i ett tomt lager");
+        }
+        if (!Files.exists(snapshot.getFile())) {
+            return 0;
+        }
+
+        List<Product> restored = new ArrayList<>();
+        try {
+            snapshot.read(restored::add);
+        } catch (IOException e) {
+            Path corrupt = snapshot.getFile().resolveSibling(snapshot.getFile().getFileName() + ".corrupt");
+            Files.move(snapshot.getFile(), corrupt, StandardCopyOption.REPLACE_EXISTING);
+            logger.error("Snapshot {} kunde inte läsas och flyttades till {}", snapshot.getFile(), corrupt, e);
+            return 0;
+        }
+
+        // Nothing else writes yet, so the products are loaded in bulk instead of one change at a time
+        List<Product> loaded = new ArrayList<>(restored.size());
+        for (Product p : restored) {
+            if (products.putIfAbsent(p.id(), p) == null) {
+                insertionOrder.add(p.id());
+                loaded.add(p);
+            }
+        }
+        indexAll(loaded);
+        // Numbered in snapshot order under one lock, /products/since pages through them by number. The catalog
+        // and the categories get one version for the whole snapshot and the change feed starts out empty
+        synchronized (changeIndex) {
+            long number = changes.get();
+            for (Product p : loaded) {
+                Version version = new Version(generation, ++number, p.lastModifiedDate());
+                productVersions.put(p.id(), version);
+                changeIndex.put(number, p.id());
+                if (version.lastModified().isAfter(latestModified)) {
+                    latestModified = version.lastModified();
+                }
+                uncoveredChanges.get(p.category()).add(version);
+            }
+            changes.set(number);
+            publishedChange = number;
+            cover(number);
+        }
+
+        logger.info("{} produkter lästes in från {}", products.size(), snapshot.getFile());
+        return products.size();
+    }
 
     public void addProduct(Product p) {
-        // Check if name is not an empty string and if id already exist
-        if (!p.name().isEmpty() &&
-                productsArr.stream()
-                        .noneMatch(productId -> productId.id() == p.id())) {
-            // Checks if rating is correct
-            if (p.rating() >= 1 && p.rating() <= 10) {
-                productsArr.add(p);
+        String rejected = rejectReason(p);
+        if (rejected != null) {
+            throw new IllegalArgumentException(rejected);
+        }
+        insert(p);
+        awaitDurable();
+    }
+
+    // Adds a whole batch, products that can't be added are reported by their position in the batch
+    public Map<Integer, String> addProducts(Collection<Product> batch) {
+        Map<Integer, String> rejected = new TreeMap<>();
+        Set<Integer> batchIds = new HashSet<>(batch.size() * 2);
+        int position = 0;
+
+        // Validate everything first, the store is only touched for products that passed
+        List<Product> accepted = new ArrayList<>(batch.size());
+        List<Integer> acceptedPositions = new ArrayList<>(batch.size());
+        for (Product p : batch) {
+            String reason = rejectReason(p);
+            if (reason == null && !batchIds.add(p.id())) {
+                reason = "Kan inte lägga till product " + p.id();
+            }
+            if (reason == null) {
+                accepted.add(p);
+                acceptedPositions.add(position);
             } else {
-                throw new IllegalArgumentException("Rating kan bara vara 1-10");
+                rejected.put(position, reason);
             }
-        } else {
-            throw new IllegalArgumentException("Kan inte lägga till product " + p.id());
+            position++;
+        }
+
+        for (int i = 0; i < accepted.size(); i++) {
+            try {
+                insert(accepted.get(i));
+            } catch (IllegalArgumentException e) {
+                // Another writer took the id after validation
+                rejected.put(acceptedPositions.get(i), e.getMessage());
+            }
+        }
+        // One wait for the whole batch instead of one per product
+        awaitDurable();
+        return rejected;
+    }
+
+    private String rejectReason(Product p) {
+        // Check if name is not an empty string and if id already exist
+        if (p.name() == null || p.name().isEmpty() || products.containsKey(p.id())) {
+            return "Kan inte lägga till product " + p.id();
+        }
+        if (p.category() == null) {
+            return "Kategori saknas för product " + p.id();
+        }
+        // Checks if rating is correct
+        if (p.rating() < 1 || p.rating() > 10) {
+            return "Rating kan bara vara 1-10";
+        }
+        return null;
+    }
+
+    private void insert(Product p) {
+        AtomicReference<Change> change = new AtomicReference<>();
+        rotation.readLock().lock();
+        try {
+            // compute settles the race between two writers adding the same id
+            products.compute(p.id(), (id, existing) -> {
+                if (existing != null) {
+                    throw new IllegalArgumentException("Kan inte lägga till product " + p.id());
+                }
+                insertionOrder.add(id);
+                sortedIds.add(id);
+                index(null, p);
+                logChange(p);
+                change.set(stamp(null, p));
+                return p;
+            });
+        } finally {
+            rotation.readLock().unlock();
+        }
+        publish(change.get());
+    }
+
+    // Replayed log records are full products, applying one that is already in the store is harmless
+    private void apply(Product p) {
+        AtomicReference<Change> change = new AtomicReference<>();
+        products.compute(p.id(), (id, existing) -> {
+            if (existing == null) {
+                insertionOrder.add(id);
+                sortedIds.add(id);
+            }
+            index(existing, p);
+            change.set(stamp(existing, p));
+            return p;
+        });
+        publish(change.get());
+    }
+
+    // Appended while the product is locked, so the log has the changes to one product in order
+    private void logChange(Product p) {
+        if (log != null) {
+            log.append(p);
+        }
+    }
+
+    // Waited for outside compute, so writers to other products can join the same fsync
+    private void awaitDurable() {
+        if (log != null) {
+            log.awaitDurable();
         }
     }
 
     public void modifyProduct(int productId, String newName, Categories newCategory, int newRating) {
+        if (modify(productId, null, newName, newCategory, newRating) == null) {
+            System.out.println("Produkt med id " + productId + " kunde inte lokaliseras");
+        }
+    }
+
+    // Compare and set: the product is only changed if it is still at expectedVersion, otherwise
+    // ConcurrentModificationException. Returns the new version, or null if there is no such product
+    public Version modifyProduct(int productId, Version expectedVersion, String newName, Categories newCategory, int newRating) {
+        return modify(productId, Objects.requireNonNull(expectedVersion), newName, newCategory, newRating);
+    }
+
+    private Version modify(int productId, Version expectedVersion, String newName, Categories newCategory, int newRating) {
         if (newRating < 1 || newRating > 10) {
             throw new IllegalArgumentException("Rating måste vara mellan 1-10");
         }
-        if (newName.trim().isEmpty()) {
+        if (newName == null || newName.trim().isEmpty()) {
             throw new IllegalArgumentException("Måste fylla i ett på produkten");
         }
-        Optional<Product> product = productsArr.stream()
-                .filter(p -> p.id() == productId)
-                .findFirst();
-
-        product.ifPresentOrElse(
-                p -> {
-                    Product changedProduct = new Product(productId, newName, newCategory, newRating, p.createdDate(),
-                            LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS));
-                    productsArr.set(productsArr.indexOf(p), changedProduct);
-                },
-                () -> {
-                    System.out.println("Produkt med id " + productId + " kunde inte lokaliseras");
+        // Checked before compute, index() would already have taken the product out of its old category
+        if (newCategory == null) {
+            throw new IllegalArgumentException("Kategori saknas för product " + productId);
+        }
+        // Versions are only handed out inside compute for the same id, so checking it here is atomic with the change
+        AtomicReference<Change> change = new AtomicReference<>();
+        rotation.readLock().lock();
+        try {
+            products.computeIfPresent(productId, (id, p) -> {
+                if (expectedVersion != null && !expectedVersion.equals(currentVersion(id))) {
+                    throw new ConcurrentModificationException("Produkt " + id + " har ändrats sedan version " + expectedVersion.number());
                 }
-        );
+                Product changed = new Product(productId, newName, newCategory, newRating, p.createdDate(),
+                        LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS));
+                index(p, changed);
+                logChange(changed);
+                change.set(stamp(p, changed));
+                return changed;
+            });
+        } finally {
+            rotation.readLock().unlock();
+        }
+
+        if (change.get() == null) {
+            return null;
+        }
+        publish(change.get());
+        awaitDurable();
+        return change.get().version();
     }
 
-    public List<Product> getProductsArr() {return new ArrayList<>(productsArr);
+    private void index(Product previous, Product current) {
+        if (previous == null || previous.category() != current.category()) {
+            if (previous != null) {
+                categoryIndex.get(previous.category()).remove(previous.id());
+                categoryCounts.get(previous.category()).decrementAndGet();
+            }
+            categoryIndex.get(current.category()).add(current.id());
+            categoryCounts.get(current.category()).incrementAndGet();
+        }
+        if (previous == null || !previous.name().equals(current.name())) {
+            String letter = firstLetter(current.name());
+            if (previous != null) {
+                firstLetterCounts.get(firstLetter(previous.name())).decrement();
+            }
+            firstLetterCounts.computeIfAbsent(letter, l -> new LongAdder()).increment();
+        }
+        // createdDate never changes after the product has been added
+        if (previous == null) {
+            createdIndex.add(new CreatedKey(current.createdDate(), current.id()));
+        }
+        leaderboard.update(previous, current);
+        nameIndex.update(previous, current);
+        if (current.createdDate().isEqual(current.lastModifiedDate())) {
+            modifiedIds.remove(current.id());
+        } else {
+            modifiedIds.add(current.id());
+        }
+    }
+
+    // The entries index(null, p) makes for every product, each index filled in its own order on a core of its
+    // own. A skip list takes keys in ascending order several times faster than at random, the path to the
+    // next key is still in the cache
+    private void indexAll(List<Product> loaded) {
+        List<Product> byId = new ArrayList<>(loaded);
+        byId.sort(Comparator.comparingInt(Product::id));
+        Stream.<Runnable>of(
+                () -> byId.forEach(p -> sortedIds.add(p.id())),
+                () -> byId.forEach(p -> {
+                    categoryIndex.get(p.category()).add(p.id());
+                    categoryCounts.get(p.category()).incrementAndGet();
+                }),
+                () -> loaded.stream()
+                        .map(p -> new CreatedKey(p.createdDate(), p.id()))
+                        .sorted()
+                        .forEach(createdIndex::add),
+                () -> loaded.forEach(p -> {
+                    firstLetterCounts.computeIfAbsent(firstLetter(p.name()), l -> new LongAdder()).increment();
+                    if (!p.createdDate().isEqual(p.lastModifiedDate())) {
+                        modifiedIds.add(p.id());
+                    }
+                }),
+                () -> leaderboard.addAll(loaded),
+                () -> nameIndex.addAll(loaded)
+        ).parallel().forEach(Runnable::run);
+    }
+
+    // One change, numbered inside the product's compute and published once the compute has returned
+    private record Change(Product previous, Product current, Version version) {
+    }
+
+    // Last in the compute, after everything that can fail. Numbering inside the compute keeps the changes to
+    // one product in the order they were made, but the new product isn't in the map yet, so nothing a reader
+    // looks at before the product gets the version until publish
+    private Change stamp(Product previous, Product current) {
+        Version version;
+        synchronized (changeIndex) {
+            version = new Version(generation, changes.incrementAndGet(), current.lastModifiedDate());
+            changesInFlight.add(version.number());
+        }
+        pendingVersions.put(current.id(), version);
+        changeFeed.publish(new ChangeFeed.Change(previous == null ? ChangeFeed.Kind.ADDED : ChangeFeed.Kind.MODIFIED,
+                version, current));
+        return new Change(previous, current, version);
+    }
+
+    // After the compute has returned, so a reader that sees a version finds the product at least that new.
+    // Two changes to one product can be published in either order, the product keeps the later version.
+    // Changes to different products can be too, so the catalog and the categories only move to a number
+    // once every change up to it is published
+    private void publish(Change change) {
+        Version version = change.version();
+        int id = change.current().id();
+        synchronized (changeIndex) {
+            Version published = productVersions.get(id);
+            if (published == null || published.number() < version.number()) {
+                if (published != null) {
+                    changeIndex.remove(published.number());
+                }
+                changeIndex.put(version.number(), id);
+                productVersions.put(id, version);
+            }
+            changesInFlight.remove(version.number());
+            publishedChange = changesInFlight.isEmpty() ? changes.get() : changesInFlight.first() - 1;
+
+            if (version.lastModified().isAfter(latestModified)) {
+                latestModified = version.lastModified();
+            }
+            uncoveredChanges.get(change.current().category()).add(version);
+            // The category the product left changed as well
+            if (change.previous() != null && change.previous().category() != change.current().category()) {
+                uncoveredChanges.get(change.previous().category()).add(version);
+            }
+            cover(publishedChange);
+        }
+        pendingVersions.remove(id, version);
+    }
+
+    // Moves the catalog and every category with a change up to watermark to it
+    private void cover(long watermark) {
+        if (watermark > catalogVersion.get().number()) {
+            catalogVersion.set(new Version(generation, watermark, latestModified));
+        }
+        uncoveredChanges.forEach((category, uncovered) -> {
+            if (uncovered.first != 0 && uncovered.first <= watermark) {
+                categoryVersions.get(category).set(new Version(generation, watermark, uncovered.modified));
+                // Only first and last are kept, the ones after the watermark are covered once it reaches the last
+                uncovered.first = uncovered.last > watermark ? uncovered.last : 0;
+            }
+        });
+    }
+
+    // The lowest and highest published change to a category that its version doesn't cover, first is 0 if none
+    private static final class Uncovered {
+        long first;
+        long last;
+        LocalDateTime modified;
+
+        Uncovered(LocalDateTime modified) {
+            this.modified = modified;
+        }
+
+        void add(Version version) {
+            long number = version.number();
+            first = first == 0 ? number : Math.min(first, number);
+            last = Math.max(last, number);
+            if (version.lastModified().isAfter(modified)) {
+                modified = version.lastModified();
+            }
+        }
+    }
+
+    // The latest version of the product, published or not. Only stable inside the product's compute
+    private Version currentVersion(int id) {
+        Version pending = pendingVersions.get(id);
+        return pending != null ? pending : productVersions.get(id);
+    }
+
+    // First code point, so letters outside the BMP are not cut in half
+    private static String firstLetter(String name) {
+        return name.isEmpty() ? "" : name.substring(0, Character.charCount(name.codePointAt(0)));
+    }
+
+    // Resolves ids from an index, skipping products that moved away while the index was read
+    private List<Product> resolve(Collection<Integer> ids, Predicate<Product> stillMatches) {
+        List<Product> resolved = new ArrayList<>();
+        for (Integer id : ids) {
+            Product p = products.get(id);
+            if (p != null && stillMatches.test(p)) {
+                resolved.add(p);
+            }
+        }
+        return resolved;
+    }
+
+    public List<Product> getProductsArr() {
+        List<Product> productsArr = new ArrayList<>(products.size());
+        for (Integer id : insertionOrder) {
+            Product p = products.get(id);
+            if (p != null) {
+                productsArr.add(p);
+            }
+        }
+        return productsArr;
+    }
+
+    // Versions are published after the products they cover, so data read after a version is at least that new
+    public Version getCatalogVersion() {
+        return catalogVersion.get();
+    }
+
+    public Version getCategoryVersion(Categories category) {
+        return categoryVersions.get(category).get();
+    }
+
+    // null when there is no product with this id
+    public Version getProductVersion(int id) {
+        return productVersions.get(id);
+    }
+
+    // The products as they are now, for every product changed after version number since, oldest change
+    // first. At most limit products, the rest is fetched again with the returned upTo as since
+    public Changes getChangesSince(long since, int limit) {
+        long upTo = publishedChange;
+        if (since >= upTo) {
+            return new Changes(Collections.emptyList(), since, false);
+        }
+
+        List<Product> changed = new ArrayList<>(Math.min(limit, 1024));
+        long last = since;
+        for (Map.Entry<Long, Integer> change : changeIndex.subMap(since, false, upTo, true).entrySet()) {
+            if (changed.size() == limit) {
+                return new Changes(changed, last, true);
+            }
+            Product p = products.get(change.getValue());
+            if (p != null) {
+                changed.add(p);
+            }
+            last = change.getKey();
+        }
+        return new Changes(changed, upTo, false);
+    }
+
+    public record Changes(List<Product> products, long upTo, boolean more) {
+    }
+
+    public ChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    public int getProductCount() {
+        return products.size();
+    }
+
+    // Keyset page: the first products with an id greater than afterId, in id order
+    public List<Product> getProductsAfterId(int afterId, int limit) {
+        return firstProducts(sortedIds.tailSet(afterId, false).iterator(), limit);
+    }
+
+    public List<Product> getProductsInIdRange(int start, int end, int limit) {
+        if (end < start) {
+            return Collections.emptyList();
+        }
+        return firstProducts(sortedIds.subSet(start, true, end, true).iterator(), limit);
+    }
+
+    public List<Product> getProductsInCategoryAfterId(Categories category, int afterId, int limit) {
+        List<Product> page = new ArrayList<>(Math.min(limit, 1024));
+        Iterator<Integer> ids = categoryIndex.get(category).tailSet(afterId, false).iterator();
+
+        while (page.size() < limit && ids.hasNext()) {
+            Product p = products.get(ids.next());
+            // Skip products that moved to another category while the bucket was read
+            if (p != null && p.category() == category) {
+                page.add(p);
+            }
+        }
+        return page;
+    }
+
+    public List<Product> getProductPage(int offset, int limit) {
+        Iterator<Integer> ids = sortedIds.iterator();
+        for (int skipped = 0; skipped < offset && ids.hasNext(); skipped++) {
+            ids.next();
+        }
+        return firstProducts(ids, limit);
+    }
+
+    private List<Product> firstProducts(Iterator<Integer> ids, int limit) {
+        List<Product> page = new ArrayList<>(Math.min(limit, 1024));
+        while (page.size() < limit && ids.hasNext()) {
+            Product p = products.get(ids.next());
+            if (p != null) {
+                page.add(p);
+            }
+        }
+        return page;
+    }
+
+    // Products whose name has a word starting with each word of the query, ignoring case and diacritics
+    public List<Product> searchByName(String query, int offset, int limit) {
+        return resolve(nameIndex.search(query, offset, limit, products), p -> true);
     }
 
     public List<Product> getProductBasedOnId(int id) {
-        List<Product> productById = productsArr.stream()
-                .filter(p -> p.id() == id).toList();
+        Product product = products.get(id);
 
-        return productById;
+        return product == null ? Collections.emptyList() : List.of(product);
     }
 
     public List<Product> getProductBasedOnCategory(Categories category) {
-        List<Product> sortedByCategory = productsArr.stream()
-                .filter(p -> p.category().equals(category))
+        List<Product> sortedByCategory = resolve(categoryIndex.get(category), p -> p.category() == category).stream()
                 .sorted(Comparator.comparing(p -> p.name().toLowerCase()))
                 .toList();
         return sortedByCategory;
     }
 
     public List<Product> getProductCreatedAfterDate(LocalDateTime date) {
-        List<Product> createdAfterDate = productsArr.stream()
-                .filter(p -> p.createdDate().isAfter(date))
-                .toList();
+        List<Product> createdAfterDate = new ArrayList<>();
+
+        // Strictly after, so every key with exactly this date is excluded
+        for (CreatedKey key : createdIndex.tailSet(new CreatedKey(date, Integer.MAX_VALUE), false)) {
+            Product p = products.get(key.id());
+            if (p != null) {
+                createdAfterDate.add(p);
+            }
+        }
         return createdAfterDate;
     }
 
     public List<Product> getProductThatBeenModified() {
-        List<Product> modifiedProducts = productsArr.stream()
-                .filter(p -> !p.createdDate().isEqual(p.lastModifiedDate()))
-                .toList();
+        List<Product> modifiedProducts = resolve(new TreeSet<>(modifiedIds),
+                p -> !p.createdDate().isEqual(p.lastModifiedDate()));
         return modifiedProducts;
     }
 
@@ -91,10 +730,9 @@ public class Warehouse {
     public List<Categories> getCategoriesWithProducts() {
         List<Categories> categoriesContainsProduct = new ArrayList<>();
 
-        for (Product p : productsArr) {
-            Categories category = p.category();
-            // check if category exist before adding
-            if (!categoriesContainsProduct.contains(category)) {
+        for (Categories category : Categories.values()) {
+            // check if category has any product before adding
+            if (categoryCounts.get(category).get() > 0) {
                 categoriesContainsProduct.add(category);
             }
         }
@@ -102,32 +740,49 @@ public class Warehouse {
         return categoriesContainsProduct;
     }
 
-    public int getHowManyProductsRelatedToCategory(Categories category) {
-        List<Product> productsInCategory = new ArrayList<>();
-
-        for (Product p : productsArr) {
-            if (p.category() == category) {
-                productsInCategory.add(p);
-            }
-        }
+    // Counts, rating histograms and average ratings per category and in total, and how many products were
+    // created and changed at or after since, from a single pass over the products. Every product is counted
+    // as one version of it, but writers carry on meanwhile, so one changed during the pass can be counted as
+    // it was before or after the change
+    public CatalogStats getStats(LocalDateTime since) {
+        Collection<Product> all = products.values();
+        return (all.size() < statsParallelRows ? all.stream() : all.parallelStream())
+                .collect(() -> new CatalogStats.Tally(since), CatalogStats.Tally::add, CatalogStats.Tally::merge)
+                .toStats();
+    }
 
-        return productsInCategory.size();
+    public int getHowManyProductsRelatedToCategory(Categories category) {
+        return categoryCounts.get(category).get();
     }
 
     public Map<String, Integer> getMap() {
-        return productsArr.stream()
-                .collect(Collectors.groupingBy(
-                        p -> p.name().substring(0, 1),
-                        Collectors.summingInt(p -> 1)
-                ));
+        Map<String, Integer> map = new HashMap<>();
+
+        firstLetterCounts.forEach((letter, count) -> {
+            int products = count.intValue();
+            // Letters whose products have all been renamed stay as zero counters
+            if (products > 0) {
+                map.put(letter, products);
+            }
+        });
+        return map;
     }
 
     public List<Product> getRecentMaxRating() {
-        List<Product> maxRatingProduct = productsArr.stream()
-                .filter(p -> p.rating() == 10 &&
-                        p.createdDate().getMonth() == LocalDateTime.now().getMonth())
-                .sorted(Comparator.comparing(Product::createdDate).reversed())
-                .toList();
+        List<Product> maxRatingProduct = new ArrayList<>();
+
+        // The leaderboard is sorted by rating first, so the rating 10 products of this month come first
+        Iterator<RatingLeaderboard.Entry> ranked = leaderboard.ranked(YearMonth.now());
+        while (ranked.hasNext()) {
+            RatingLeaderboard.Entry entry = ranked.next();
+            if (entry.rating() != 10) {
+                break;
+            }
+            Product p = products.get(entry.id());
+            if (p != null && p.rating() == 10) {
+                maxRatingProduct.add(p);
+            }
+        }
 
         if (maxRatingProduct.isEmpty()) {
             throw new NoSuchElementException("Det fanns ingen produkt med högsta rating");
@@ -136,4 +791,188 @@ public class Warehouse {
 
         return maxRatingProduct;
     }
+
+    // Best rated products created within the months from..to, newest first among equal ratings.
+    // Only the last RatingLeaderboard.RETAINED_MONTHS months are kept
+    public List<Product> getTopRated(YearMonth from, YearMonth to, int k) {
+        List<Product> topRated = new ArrayList<>();
+
+        for (RatingLeaderboard.Entry entry : leaderboard.top(from, to, k)) {
+            Product p = products.get(entry.id());
+            // Skip entries whose rating changed while the leaderboard was read
+            if (p != null && p.rating() == entry.rating()) {
+                topRated.add(p);
+            }
+        }
+        return topRated;
+    }
+
+    public enum AccessPath {ID, CATEGORY, CREATED, NAME, SCAN}
+
+    public record QueryResult(List<Product> products, AccessPath path) {
+    }
+
+    // The products matching every predicate of the query in its order, at most its limit of them. plan picks
+    // where the candidates come from. When that index is already in the query's order the walk stops at the
+    // limit, otherwise only the best limit matches are kept on a heap instead of sorting them all
+    public QueryResult query(ProductQuery query) {
+        if (products.isEmpty()) {
+            return new QueryResult(Collections.emptyList(), AccessPath.SCAN);
+        }
+        AccessPath path = plan(query);
+        int minId = query.minId() == null ? Integer.MIN_VALUE : query.minId();
+        int maxId = query.maxId() == null ? Integer.MAX_VALUE : query.maxId();
+        if (minId > maxId) {
+            return new QueryResult(Collections.emptyList(), path);
+        }
+
+        Iterator<Integer> ids = switch (path) {
+            case ID -> sortedIds.subSet(minId, true, maxId, true).iterator();
+            case CATEGORY -> categoryIndex.get(query.category()).subSet(minId, true, maxId, true).iterator();
+            case CREATED -> {
+                NavigableSet<CreatedKey> created = query.createdAfter() == null ? createdIndex
+                        : createdIndex.tailSet(new CreatedKey(query.createdAfter(), Integer.MAX_VALUE), false);
+                Iterator<CreatedKey> keys = query.sort() == ProductQuery.Sort.NEWEST
+                        ? created.descendingIterator() : created.iterator();
+                yield new Iterator<>() {
+                    public boolean hasNext() {
+                        return keys.hasNext();
+                    }
+
+                    public Integer next() {
+                        return keys.next().id();
+                    }
+                };
+            }
+            case NAME -> nameIndex.search(query.name(), 0, Integer.MAX_VALUE, products).iterator();
+            case SCAN -> products.values().stream().filter(query::matches).map(Product::id).iterator();
+        };
+
+        List<Product> found = inOrder(path, query.sort())
+                ? firstMatches(ids, query, query.limit())
+                : topMatches(ids, query, query.sort().order(), query.limit());
+        return new QueryResult(found, path);
+    }
+
+    // The path expected to resolve the fewest products. An index costs every product it gives, a path in the
+    // query's order only until limit of them matched. A scan tests every product in the store, which costs
+    // ROW_SCAN_COST of resolving one, and then resolves the ones that matched. A name always goes
+    // through the NameIndex, it is the only one that can check it
+    private AccessPath plan(ProductQuery query) {
+        if (query.name() != null) {
+            return AccessPath.NAME;
+        }
+        int count = products.size();
+        Selectivity selectivity = estimate(query);
+
+        Map<AccessPath, Double> fractions = new EnumMap<>(AccessPath.class);
+        if (query.category() != null) {
+            // Exact for the category, the id range is left to the subset
+            fractions.put(AccessPath.CATEGORY, selectivity.ids() * categoryCounts.get(query.category()).get() / count);
+        }
+        if (query.minId() != null || query.maxId() != null || query.sort() == ProductQuery.Sort.ID) {
+            fractions.put(AccessPath.ID, selectivity.ids());
+        }
+        if (query.createdAfter() != null || query.sort() == ProductQuery.Sort.CREATED || query.sort() == ProductQuery.Sort.NEWEST) {
+            fractions.put(AccessPath.CREATED, selectivity.created());
+        }
+
+        AccessPath cheapest = AccessPath.SCAN;
+        double lowestCost = count * (ROW_SCAN_COST + selectivity.all());
+        for (Map.Entry<AccessPath, Double> path : fractions.entrySet()) {
+            double fraction = path.getValue();
+            double cost = count * fraction;
+            if (inOrder(path.getKey(), query.sort())) {
+                // Of the products the path gives, all / fraction match
+                cost = Math.min(cost, query.limit() * fraction / selectivity.all());
+            }
+            if (cost < lowestCost) {
+                cheapest = path.getKey();
+                lowestCost = cost;
+            }
+        }
+        return cheapest;
+    }
+
+    // Fractions of the catalog in the query's id range, created after its date and matching all of it. From the
+    // products at random ids over the whole id range, an id after a gap is picked more often than the others
+    private Selectivity estimate(ProductQuery query) {
+        int first = sortedIds.first();
+        int last = sortedIds.last();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int sampled = 0;
+        int inIdRange = 0;
+        int createdAfter = 0;
+        int all = 0;
+        for (int i = 0; i < SAMPLED_PRODUCTS; i++) {
+            Integer id = sortedIds.ceiling((int) random.nextLong(first, last + 1L));
+            Product p = id == null ? null : products.get(id);
+            if (p == null) {
+                continue;
+            }
+            sampled++;
+            inIdRange += (query.minId() == null || p.id() >= query.minId())
+                    && (query.maxId() == null || p.id() <= query.maxId()) ? 1 : 0;
+            createdAfter += query.createdAfter() == null || p.createdDate().isAfter(query.createdAfter()) ? 1 : 0;
+            all += query.matches(p) ? 1 : 0;
+        }
+        if (sampled == 0) {
+            return new Selectivity(0, 0, 0);
+        }
+        double least = 0.5 / sampled;
+        return new Selectivity(Math.max(least, (double) inIdRange / sampled),
+                Math.max(least, (double) createdAfter / sampled), Math.max(least, (double) all / sampled));
+    }
+
+    private record Selectivity(double ids, double created, double all) {
+    }
+
+    // The id sets are sorted by id and the created index by date and id, which NEWEST walks backwards
+    private static boolean inOrder(AccessPath path, ProductQuery.Sort sort) {
+        return switch (path) {
+            case ID, CATEGORY -> sort == ProductQuery.Sort.ID;
+            case CREATED -> sort == ProductQuery.Sort.CREATED || sort == ProductQuery.Sort.NEWEST;
+            case NAME, SCAN -> false;
+        };
+    }
+
+    private List<Product> firstMatches(Iterator<Integer> ids, ProductQuery query, int limit) {
+        List<Product> found = new ArrayList<>(Math.min(limit, 1024));
+        while (found.size() < limit && ids.hasNext()) {
+            Product p = products.get(ids.next());
+            // The product can have changed after the index was read
+            if (p != null && query.matches(p)) {
+                found.add(p);
+            }
+        }
+        return found;
+    }
+
+    // The heap's head is the worst product kept, so a match that can't make the top is dropped after one compare
+    private List<Product> topMatches(Iterator<Integer> ids, ProductQuery query, Comparator<Product> order, int limit) {
+        PriorityQueue<Product> top = new PriorityQueue<>(Math.min(limit, 1024), order.reversed());
+        while (ids.hasNext()) {
+            Product p = products.get(ids.next());
+            if (p == null || !query.matches(p)) {
+                continue;
+            }
+            if (top.size() < limit) {
+                top.add(p);
+            } else if (order.compare(p, top.peek()) < 0) {
+                top.poll();
+                top.add(p);
+            }
+        }
+        List<Product> found = new ArrayList<>(top);
+        found.sort(order);
+        return found;
+    }
+
+    private record CreatedKey(LocalDateTime createdDate, int id) implements Comparable<CreatedKey> {
+        @Override
+        public int compareTo(CreatedKey other) {
+            int byDate = createdDate.compareTo(other.createdDate);
+            return byDate != 0 ? byDate : Integer.compare(id, other.id);
+        }
+    }
 }
@@ -0,0 +1,42 @@
+package Interceptor;
+
+import org.junit.jupiter.api.Test;
+import org.laboration3.Interceptor.Compression;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompressionTest {
+
+    @Test
+    void negotiatesTheEncodingWithTheHighestQuality() {
+        assertThat(Compression.negotiate(null)).isNull();
+        assertThat(Compression.negotiate("identity")).isNull();
+        assertThat(Compression.negotiate("gzip, deflate, br")).isEqualTo(Compression.Encoding.GZIP);
+        assertThat(Compression.negotiate("deflate")).isEqualTo(Compression.Encoding.DEFLATE);
+        assertThat(Compression.negotiate("gzip;q=0.2, deflate;q=0.8")).isEqualTo(Compression.Encoding.DEFLATE);
+        assertThat(Compression.negotiate("gzip;q=0, deflate;q=0")).isNull();
+        assertThat(Compression.negotiate("*")).isEqualTo(Compression.Encoding.GZIP);
+        assertThat(Compression.negotiate("gzip;q=0, *")).isEqualTo(Compression.Encoding.DEFLATE);
+    }
+
+    @Test
+    void pooledDeflatersStartOverForEveryBody() throws Exception {
+        byte[] first = "[{\"id\":1,\"name\":\"Hårblekning\"}]".repeat(100).getBytes(StandardCharsets.UTF_8);
+        byte[] second = "[{\"id\":2,\"name\":\"Knäskydd\"}]".repeat(50).getBytes(StandardCharsets.UTF_8);
+
+        for (int round = 0; round < 3; round++) {
+            byte[] gzipped = Compression.compress(first, Compression.Encoding.GZIP);
+            assertThat(gzipped.length).isLessThan(first.length / 10);
+            assertThat(new GZIPInputStream(new ByteArrayInputStream(gzipped)).readAllBytes()).isEqualTo(first);
+            assertThat(new GZIPInputStream(new ByteArrayInputStream(Compression.compress(second, Compression.Encoding.GZIP))).readAllBytes())
+                    .isEqualTo(second);
+            assertThat(new InflaterInputStream(new ByteArrayInputStream(Compression.compress(second, Compression.Encoding.DEFLATE))).readAllBytes())
+                    .isEqualTo(second);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package Interceptor;
+
+import org.junit.jupiter.api.Test;
+import org.laboration3.Interceptor.LatencyHistogram;
+import org.laboration3.Interceptor.MetricsRegistry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class LatencyHistogramTest {
+
+    @Test
+    void percentilesStayWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        // 1µs .. 1000µs in nanos, p50 is 500µs and p99 is 990µs
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros * 1000);
+        }
+
+        assertThat(histogram.getCount()).isEqualTo(1000);
+        assertThat(histogram.getSum()).isEqualTo(500_500_000L);
+        assertThat((double) histogram.getValueAtPercentile(50)).isCloseTo(500_000, within(500_000 * 0.04));
+        assertThat((double) histogram.getValueAtPercentile(99)).isCloseTo(990_000, within(990_000 * 0.04));
+        assertThat((double) histogram.getValueAtPercentile(100)).isCloseTo(1_000_000, within(1_000_000 * 0.04));
+    }
+
+    @Test
+    void smallAndExtremeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertThat(histogram.getValueAtPercentile(99)).isEqualTo(0);
+
+        histogram.record(7);
+        histogram.record(-3);
+        histogram.record(Long.MAX_VALUE);
+
+        // Values below 64 are exact
+        assertThat(histogram.getValueAtPercentile(1)).isEqualTo(0);
+        assertThat(histogram.getValueAtPercentile(50)).isEqualTo(7);
+        assertThat(histogram.getValueAtPercentile(100)).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    void prometheusTextContainsRecordedMethod() throws NoSuchMethodException {
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricsRegistry.EndpointMetrics metrics = registry.forMethod(String.class.getMethod("length"));
+
+        metrics.recordCall(2_000_000, false);
+        metrics.recordCall(4_000_000, true);
+        metrics.recordPayload(512);
+
+        String text = registry.toPrometheusText();
+
+        assertThat(text).contains("# TYPE warehouse_request_duration_seconds summary");
+        assertThat(text).contains("warehouse_request_duration_seconds_count{method=\"String.length\"} 2");
+        assertThat(text).contains("warehouse_requests_total{method=\"String.length\"} 2");
+        assertThat(text).contains("warehouse_request_errors_total{method=\"String.length\"} 1");
+        assertThat(text).contains("warehouse_response_bytes_sum{method=\"String.length\"} 512");
+    }
+}
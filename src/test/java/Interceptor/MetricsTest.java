@@ -0,0 +1,88 @@
+package Interceptor;
+
+import jakarta.interceptor.InvocationContext;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.core.Response;
+import org.junit.jupiter.api.Test;
+import org.laboration3.Interceptor.Metrics;
+import org.laboration3.Interceptor.MetricsRegistry;
+import org.laboration3.resource.utils.RequestExecutor;
+
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MetricsTest {
+
+    // Stand-ins for resource methods, each test gets its own entry in the registry
+    public void write(AsyncResponse response) {
+    }
+
+    public void failingWrite(AsyncResponse response) {
+    }
+
+    private String metrics() {
+        return MetricsRegistry.getRegistry().toPrometheusText();
+    }
+
+    private static String sample(String metric, String method, String value) {
+        return metric + "{method=\"MetricsTest." + method + "\"} " + value;
+    }
+
+    // Calls the interceptor the way the container would, the method hands its request to the executor
+    private AsyncResponse invokeSuspended(String method, RequestExecutor executor, Response result, RuntimeException failure)
+            throws Exception {
+        AsyncResponse response = mock(AsyncResponse.class);
+        Object[] parameters = {response};
+        InvocationContext context = mock(InvocationContext.class);
+        when(context.getMethod()).thenReturn(MetricsTest.class.getMethod(method, AsyncResponse.class));
+        when(context.getParameters()).thenReturn(parameters);
+        when(context.proceed()).thenAnswer(invocation -> {
+            executor.execute((AsyncResponse) parameters[0], () -> {
+                Thread.sleep(50);
+                if (failure != null) {
+                    throw failure;
+                }
+                return result;
+            });
+            return null;
+        });
+
+        new Metrics().measureCallMethod(context);
+        return response;
+    }
+
+    @Test
+    void suspendedRequestsAreMeasuredUntilTheyAreResumed() throws Exception {
+        ExecutorService threads = Executors.newSingleThreadExecutor();
+        RequestExecutor executor = new RequestExecutor(threads);
+
+        AsyncResponse ok = invokeSuspended("write", executor, Response.noContent().build(), null);
+        verify(ok, timeout(5_000)).resume(any(Object.class));
+        AsyncResponse failed = invokeSuspended("failingWrite", executor, null, new ConcurrentModificationException("Ändrad"));
+        verify(failed, timeout(5_000)).resume(any(Throwable.class));
+        threads.shutdown();
+        assertThat(threads.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+
+        // The handler ran on another thread after the method returned, its time and failure still count
+        String text = metrics();
+        assertThat(text).contains(sample("warehouse_requests_total", "write", "1"),
+                sample("warehouse_request_errors_total", "write", "0"),
+                sample("warehouse_requests_total", "failingWrite", "1"),
+                sample("warehouse_request_errors_total", "failingWrite", "1"));
+        for (String method : new String[]{"write", "failingWrite"}) {
+            String sum = text.lines()
+                    .filter(line -> line.startsWith("warehouse_request_duration_seconds_sum{method=\"MetricsTest." + method + "\"}"))
+                    .findFirst().orElseThrow();
+            assertThat(Double.parseDouble(sum.substring(sum.lastIndexOf(' ') + 1))).isGreaterThanOrEqualTo(0.05);
+        }
+    }
+}
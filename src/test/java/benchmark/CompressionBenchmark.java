@@ -0,0 +1,79 @@
+package benchmark;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Request;
+import jakarta.ws.rs.core.Response;
+import org.laboration3.Interceptor.Compression;
+import org.laboration3.resource.api.ProductResource;
+import org.laboration3.resource.utils.ResponseCache;
+import org.laboration3.service.Warehouse;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+// What a gzip client costs on GET /products when the JSON is already cached: compressing it for every
+// response with a new GZIPOutputStream or a pooled Deflater, or sending the cached compressed bytes.
+// The sizes are printed once per fork
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"1000", "10000"})
+    public int catalogSize;
+
+    private byte[] json;
+    private ProductResource productResource;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Warehouse warehouse = WarehouseBenchmark.createWarehouse(catalogSize);
+        productResource = new ProductResource();
+        inject("warehouse", warehouse);
+        inject("responseCache", new ResponseCache(256L << 20));
+        inject("request", Proxy.newProxyInstance(Request.class.getClassLoader(),
+                new Class<?>[]{Request.class}, (proxy, method, args) -> null));
+        inject("httpHeaders", Proxy.newProxyInstance(HttpHeaders.class.getClassLoader(),
+                new Class<?>[]{HttpHeaders.class}, (proxy, method, args) -> "gzip"));
+
+        // The first call caches the JSON, the second its compressed copy
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ((jakarta.ws.rs.core.StreamingOutput) productResource.getProducts().getEntity()).write(output);
+        json = output.toByteArray();
+        byte[] precompressed = (byte[]) productResource.getProducts().getEntity();
+        System.out.printf("%n%d products: %d bytes of JSON, %d gzipped%n", catalogSize, json.length, precompressed.length);
+    }
+
+    private void inject(String name, Object value) throws ReflectiveOperationException {
+        Field field = ProductResource.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(productResource, value);
+    }
+
+    @Benchmark
+    public byte[] gzipWithNewDeflater() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(json.length / 4);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed, 8192)) {
+            gzip.write(json);
+        }
+        return compressed.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] gzipWithPooledDeflater() throws Exception {
+        return Compression.compress(json, Compression.Encoding.GZIP);
+    }
+
+    @Benchmark
+    public Object precompressedHit() throws Exception {
+        Response response = productResource.getProducts();
+        return response.getEntity();
+    }
+}
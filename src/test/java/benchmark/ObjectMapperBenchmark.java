@@ -0,0 +1,58 @@
+package benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.laboration3.entities.Categories;
+import org.laboration3.entities.Product;
+import org.laboration3.resource.utils.ObjectMapperConvertDate;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Per request cost of serializing a response, run with -prof gc to compare gc.alloc.rate.norm
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObjectMapperBenchmark {
+
+    private Product product;
+    private List<Product> products;
+
+    @Setup
+    public void setUp() {
+        LocalDateTime date = LocalDateTime.of(2023, 10, 1, 12, 0);
+        product = new Product(1, "Hårblekning", Categories.health, 8, date, date);
+        products = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            products.add(new Product(i, "Produkt" + i, Categories.sport, 1 + i % 10, date, date));
+        }
+    }
+
+    // How every request used to do it, a new mapper from ProductResource and from getContext
+    @Benchmark
+    public byte[] productWithNewMapper() throws Exception {
+        ObjectMapper objectMapper = ObjectMapperConvertDate.configureObjectMapper();
+        return objectMapper.writeValueAsBytes(product);
+    }
+
+    @Benchmark
+    public byte[] productWithSharedWriter() throws Exception {
+        return ObjectMapperConvertDate.productWriter().writeValueAsBytes(product);
+    }
+
+    @Benchmark
+    public byte[] productListWithNewMapper() throws Exception {
+        ObjectMapper objectMapper = ObjectMapperConvertDate.configureObjectMapper();
+        return objectMapper.writeValueAsBytes(products);
+    }
+
+    @Benchmark
+    public byte[] productListWithSharedWriter() throws Exception {
+        return ObjectMapperConvertDate.productListWriter().writeValueAsBytes(products);
+    }
+}
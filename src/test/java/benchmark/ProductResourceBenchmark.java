@@ -0,0 +1,111 @@
+package benchmark;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Request;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.laboration3.entities.Categories;
+import org.laboration3.resource.api.ProductResource;
+import org.laboration3.resource.utils.ResponseCache;
+import org.laboration3.service.Warehouse;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// End to end cost of the GET methods including serialization, the body is written to a counting sink
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProductResourceBenchmark {
+
+    @Param({"1000", "100000"})
+    public int catalogSize;
+
+    // 0 turns the response cache off
+    @Param({"0", "67108864"})
+    public long cacheBytes;
+
+    private ProductResource productResource;
+    private final SplittableRandom random = new SplittableRandom(7);
+
+    @Setup(Level.Trial)
+    public void setUp() throws ReflectiveOperationException {
+        Warehouse warehouse = WarehouseBenchmark.createWarehouse(catalogSize);
+        productResource = new ProductResource();
+
+        // Same field injection as the container does, without conditional request headers
+        Request request = (Request) Proxy.newProxyInstance(Request.class.getClassLoader(),
+                new Class<?>[]{Request.class}, (proxy, method, args) -> null);
+        inject("warehouse", warehouse);
+        inject("responseCache", new ResponseCache(cacheBytes));
+        inject("request", request);
+        inject("httpHeaders", Proxy.newProxyInstance(HttpHeaders.class.getClassLoader(),
+                new Class<?>[]{HttpHeaders.class}, (proxy, method, args) -> null));
+    }
+
+    private void inject(String name, Object value) throws ReflectiveOperationException {
+        Field field = ProductResource.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(productResource, value);
+    }
+
+    @Benchmark
+    public long getProducts() throws Exception {
+        return write(productResource.getProducts());
+    }
+
+    @Benchmark
+    public long getProductById() throws Exception {
+        return write(productResource.getProductById(random.nextInt(catalogSize)));
+    }
+
+    @Benchmark
+    public long getProductsByCategory() throws Exception {
+        return write(productResource.getProductsByCategory(Categories.sport.toString()));
+    }
+
+    @Benchmark
+    public long getProductsWithPagination() throws Exception {
+        return write(productResource.getProductsWithPagination(-1, -1, random.nextInt(catalogSize), 50));
+    }
+
+    @Benchmark
+    public long getProductsWithQuery() throws Exception {
+        int start = 1 + random.nextInt(catalogSize - 100);
+        return write(productResource.getProductsWithQuery(start, start + 100));
+    }
+
+    private static long write(Response response) throws IOException {
+        CountingOutputStream output = new CountingOutputStream();
+        Object entity = response.getEntity();
+
+        if (entity instanceof StreamingOutput streamingOutput) {
+            streamingOutput.write(output);
+        } else if (entity instanceof byte[] bytes) {
+            output.write(bytes);
+        }
+        return output.count;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
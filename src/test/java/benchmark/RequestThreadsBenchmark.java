@@ -0,0 +1,94 @@
+package benchmark;
+
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.core.Response;
+import org.laboration3.entities.Categories;
+import org.laboration3.entities.Product;
+import org.laboration3.resource.api.ProductResource;
+import org.laboration3.resource.utils.RequestExecutor;
+import org.laboration3.service.ProductLog;
+import org.laboration3.service.Warehouse;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+// POST /products under load, every write waits for the fsync of the log. Clients hand their request to a
+// fixed pool that stands in for the container's worker threads, like Undertow's default task pool.
+// Virtual threads need Java 21 to run, on older versions both modes measure platform threads
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(64)
+@Fork(1)
+public class RequestThreadsBenchmark {
+
+    private static final int WORKER_THREADS = 16;
+
+    @Param({"platform", "virtual"})
+    public String mode;
+
+    private Path directory;
+    private ExecutorService workers;
+    private RequestExecutor requestExecutor;
+    private ProductResource productResource;
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ReflectiveOperationException {
+        directory = Files.createTempDirectory("request-threads");
+        Warehouse warehouse = new Warehouse();
+        warehouse.openPersistence(directory, ProductLog.Durability.SYNC);
+
+        workers = Executors.newFixedThreadPool(WORKER_THREADS);
+        requestExecutor = new RequestExecutor(RequestExecutor.Mode.valueOf(mode.toUpperCase()));
+        productResource = new ProductResource();
+        inject("warehouse", warehouse);
+        inject("requestExecutor", requestExecutor);
+    }
+
+    private void inject(String name, Object value) throws ReflectiveOperationException {
+        Field field = ProductResource.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(productResource, value);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        workers.shutdownNow();
+        requestExecutor.shutdown();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public int createProduct() throws Exception {
+        LocalDateTime now = LocalDateTime.now();
+        Product product = new Product(nextId.incrementAndGet(), "Produkt", Categories.sport, 5, now, now);
+        CompletableFuture<Response> response = new CompletableFuture<>();
+        workers.execute(() -> productResource.createProduct(product, resumeInto(response)));
+        return response.get(10, TimeUnit.SECONDS).getStatus();
+    }
+
+    // Only resume is used by the resource
+    private static AsyncResponse resumeInto(CompletableFuture<Response> response) {
+        return (AsyncResponse) Proxy.newProxyInstance(AsyncResponse.class.getClassLoader(),
+                new Class<?>[]{AsyncResponse.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("resume")) {
+                        return args[0] instanceof Response r ? response.complete(r) : response.completeExceptionally((Throwable) args[0]);
+                    }
+                    return null;
+                });
+    }
+}
@@ -0,0 +1,200 @@
+package benchmark;
+
+import org.laboration3.entities.Categories;
+import org.laboration3.entities.Product;
+import org.laboration3.service.CatalogStats;
+import org.laboration3.service.ProductQuery;
+import org.laboration3.service.Warehouse;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.EnumMap;
+import java.util.IntSummaryStatistics;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+// Threads for the single methods are set from the command line, e.g. -t 8. readWrite runs on 4 threads
+// for every share of writes in Mix, so the published results have the reader/writer ratios in them
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WarehouseBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int catalogSize;
+
+    // Products added per iteration of addProduct and thread
+    private static final int ADDED_PER_ITERATION = 10_000;
+
+    private Warehouse warehouse;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        warehouse = createWarehouse(catalogSize);
+    }
+
+    static Warehouse createWarehouse(int catalogSize) {
+        Warehouse warehouse = new Warehouse();
+        LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+        Categories[] categories = Categories.values();
+        SplittableRandom random = new SplittableRandom(42);
+
+        for (int id = 0; id < catalogSize; id++) {
+            // Spread creation dates over the last year so this month only holds a part of the catalog
+            LocalDateTime created = now.minusHours(random.nextInt(24 * 365));
+            String name = (char) ('A' + random.nextInt(26)) + "produkt" + id;
+            warehouse.addProduct(new Product(id, name, categories[random.nextInt(categories.length)],
+                    1 + random.nextInt(10), created, created));
+        }
+        return warehouse;
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadRandom {
+        final SplittableRandom random = new SplittableRandom();
+
+        int id(int catalogSize) {
+            return random.nextInt(catalogSize);
+        }
+
+        Categories category() {
+            return Categories.values()[random.nextInt(Categories.values().length)];
+        }
+    }
+
+    // A warehouse of its own that starts over from catalogSize products every iteration
+    @State(Scope.Benchmark)
+    public static class Additions {
+        @Param({"1000", "100000", "1000000"})
+        public int catalogSize;
+
+        Warehouse warehouse;
+        final AtomicInteger nextId = new AtomicInteger();
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            warehouse = createWarehouse(catalogSize);
+            nextId.set(catalogSize);
+        }
+    }
+
+    // Products can't be removed, so an iteration is a fixed batch of adds and the catalog never grows by
+    // more than one batch. The score is the time for the whole batch
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 3, batchSize = ADDED_PER_ITERATION)
+    @Measurement(iterations = 5, batchSize = ADDED_PER_ITERATION)
+    public void addProduct(Additions additions) {
+        int id = additions.nextId.getAndIncrement();
+        additions.warehouse.addProduct(Product.createProduct(id, "Ny produkt " + id, Categories.sport, 5));
+    }
+
+    @Benchmark
+    public void modifyProduct(ThreadRandom random) {
+        warehouse.modifyProduct(random.id(catalogSize), "Ändrad", random.category(), 7);
+    }
+
+    @Benchmark
+    public List<Product> getProductBasedOnId(ThreadRandom random) {
+        return warehouse.getProductBasedOnId(random.id(catalogSize));
+    }
+
+    @Benchmark
+    public List<Product> getProductBasedOnCategory(ThreadRandom random) {
+        return warehouse.getProductBasedOnCategory(random.category());
+    }
+
+    // Autocomplete prefixes like "kprodukt12", each matches a few thousand names of a million
+    @Benchmark
+    public List<Product> searchByName(ThreadRandom random) {
+        String prefix = (char) ('a' + random.random.nextInt(26)) + "produkt" + (10 + random.random.nextInt(90));
+        return warehouse.searchByName(prefix, 0, 20);
+    }
+
+    // A client that is 100 changes behind, the cost should not grow with the catalog
+    @Benchmark
+    public Warehouse.Changes getChangesSince() {
+        return warehouse.getChangesSince(warehouse.getCatalogVersion().number() - 100, 1000);
+    }
+
+    // Creation dates are spread over a year, so the last week is about 2% of the catalog
+    @Benchmark
+    public List<Product> getProductCreatedAfterDate() {
+        return warehouse.getProductCreatedAfterDate(LocalDateTime.now().minusDays(7));
+    }
+
+    // One pass over the products, split on the common pool from 65536 products
+    @Benchmark
+    public CatalogStats getStats() {
+        return warehouse.getStats(LocalDateTime.now().minusDays(30));
+    }
+
+    // The same figures from the products, one grouping pass for counts and ratings
+    @Benchmark
+    public Map<Categories, IntSummaryStatistics> getStatsFromProducts() {
+        return warehouse.getProductsArr().stream()
+                .collect(Collectors.groupingBy(Product::category, () -> new EnumMap<>(Categories.class),
+                        Collectors.summarizingInt(Product::rating)));
+    }
+
+    // A third of a category left after the rating, sorted by name, so the planner has no index in that order
+    @Benchmark
+    public Warehouse.QueryResult queryCategoryByName(ThreadRandom random) {
+        return warehouse.query(ProductQuery.all().withCategory(random.category()).withRatings(8, null)
+                .sortedBy(ProductQuery.Sort.NAME).limitedTo(10));
+    }
+
+    // The same query as the separate endpoints would answer it, filtering and sorting every product
+    @Benchmark
+    public List<Product> queryCategoryByNameFromProducts(ThreadRandom random) {
+        Categories category = random.category();
+        return warehouse.getProductsArr().stream()
+                .filter(p -> p.category() == category && p.rating() >= 8)
+                .sorted(ProductQuery.Sort.NAME.order())
+                .limit(10)
+                .toList();
+    }
+
+    // The created index is in this order, so the walk stops after about 50 products
+    @Benchmark
+    public Warehouse.QueryResult queryNewestTopRated() {
+        return warehouse.query(ProductQuery.all().withRatings(9, null).sortedBy(ProductQuery.Sort.NEWEST).limitedTo(10));
+    }
+
+    @Benchmark
+    public Map<String, Integer> getMap() {
+        return warehouse.getMap();
+    }
+
+    @Benchmark
+    public List<Product> getRecentMaxRating() {
+        return warehouse.getRecentMaxRating();
+    }
+
+    @State(Scope.Thread)
+    public static class Mix {
+        // Share of the calls that modify a product, the others read one. 25 is one writer to three readers
+        @Param({"0", "5", "25", "50"})
+        public int writePercent;
+    }
+
+    // Readers and writers on the same products, the average is over reads and writes together
+    @Benchmark
+    @Threads(4)
+    public Object readWrite(ThreadRandom random, Mix mix) {
+        int id = random.id(catalogSize);
+        if (random.random.nextInt(100) < mix.writePercent) {
+            warehouse.modifyProduct(id, "Ändrad", random.category(), 7);
+            return null;
+        }
+        return warehouse.getProductBasedOnId(id);
+    }
+}
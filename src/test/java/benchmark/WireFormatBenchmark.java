@@ -0,0 +1,90 @@
+package benchmark;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import jakarta.ws.rs.core.MediaType;
+import org.laboration3.entities.Categories;
+import org.laboration3.entities.Product;
+import org.laboration3.resource.utils.ObjectMapperConvertDate;
+import org.laboration3.resource.utils.ProductJsonStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// JSON against Smile for a product list as GET /products streams it and for one product, both ways.
+// The payload sizes are printed once per fork
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WireFormatBenchmark {
+
+    @Param({"json", "smile"})
+    private String format;
+
+    @Param({"1000"})
+    private int listSize;
+
+    private MediaType type;
+    private List<Product> products;
+    private Product product;
+    private ObjectWriter productWriter;
+    private ObjectReader productReader;
+    private ObjectReader listReader;
+    private byte[] encodedList;
+    private byte[] encodedProduct;
+
+    @Setup
+    public void setUp() throws Exception {
+        boolean smile = format.equals("smile");
+        type = smile ? ObjectMapperConvertDate.APPLICATION_SMILE_TYPE : MediaType.APPLICATION_JSON_TYPE;
+        ObjectMapper mapper = smile ? ObjectMapperConvertDate.smileObjectMapper() : ObjectMapperConvertDate.sharedObjectMapper();
+        productWriter = smile ? ObjectMapperConvertDate.smileProductWriter() : ObjectMapperConvertDate.productWriter();
+        productReader = smile ? ObjectMapperConvertDate.smileProductReader() : ObjectMapperConvertDate.productReader();
+        JavaType listType = mapper.getTypeFactory().constructCollectionType(List.class, Product.class);
+        listReader = mapper.readerFor(listType);
+
+        LocalDateTime date = LocalDateTime.of(2023, 10, 1, 12, 0, 15);
+        Categories[] categories = Categories.values();
+        products = new ArrayList<>(listSize);
+        for (int i = 1; i <= listSize; i++) {
+            products.add(new Product(i, "Produkt " + i, categories[i % categories.length], 1 + i % 10, date, date.plusMinutes(i)));
+        }
+        product = new Product(1, "Hårblekning", Categories.health, 8, date, date);
+
+        encodedList = encodeList();
+        encodedProduct = encodeProduct();
+        System.out.printf("%n%s: %d bytes for %d products, %d bytes for one%n",
+                format, encodedList.length, listSize, encodedProduct.length);
+    }
+
+    @Benchmark
+    public byte[] encodeList() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(64 * listSize);
+        ProductJsonStream.array(products.iterator(), type).write(output);
+        return output.toByteArray();
+    }
+
+    @Benchmark
+    public List<Product> decodeList() throws Exception {
+        return listReader.readValue(encodedList);
+    }
+
+    @Benchmark
+    public byte[] encodeProduct() throws Exception {
+        return productWriter.writeValueAsBytes(product);
+    }
+
+    @Benchmark
+    public Product decodeProduct() throws Exception {
+        return productReader.readValue(encodedProduct);
+    }
+}
@@ -0,0 +1,164 @@
+package resource;
+
+import jakarta.ws.rs.sse.OutboundSseEvent;
+import jakarta.ws.rs.sse.SseEventSink;
+import org.jboss.resteasy.plugins.providers.sse.SseImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.laboration3.entities.Categories;
+import org.laboration3.entities.Product;
+import org.laboration3.resource.utils.ChangeStream;
+import org.laboration3.service.ChangeFeed;
+import org.laboration3.service.Version;
+import org.laboration3.service.Warehouse;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ChangeStreamTest {
+
+    private final LocalDateTime date = LocalDateTime.of(2023, 9, 3, 10, 15, 30);
+    private final List<ChangeStream> streams = new ArrayList<>();
+
+    // Records what is sent, a stalled sink never acknowledges anything but the resync event
+    private static class RecordingSink implements SseEventSink {
+        final BlockingQueue<OutboundSseEvent> events = new LinkedBlockingQueue<>();
+        final boolean stalled;
+        volatile boolean closed;
+
+        RecordingSink(boolean stalled) {
+            this.stalled = stalled;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public CompletionStage<?> send(OutboundSseEvent event) {
+            events.add(event);
+            return stalled && !event.getName().equals("resync") ? new CompletableFuture<>() : CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        OutboundSseEvent next() throws InterruptedException {
+            OutboundSseEvent event = events.poll(5, TimeUnit.SECONDS);
+            assertThat(event).as("event").isNotNull();
+            return event;
+        }
+    }
+
+    private ChangeStream stream(Warehouse warehouse) {
+        ChangeStream stream = new ChangeStream(warehouse);
+        streams.add(stream);
+        return stream;
+    }
+
+    @AfterEach
+    void shutdown() {
+        streams.forEach(ChangeStream::shutdown);
+    }
+
+    private Product product(int id, String name) {
+        return new Product(id, name, Categories.health, 5, date, date);
+    }
+
+    private static String eventId(Version version) {
+        return Long.toHexString(version.generation()) + "-" + Long.toHexString(version.number());
+    }
+
+    @Test
+    void streamsChangesInOrder() throws InterruptedException {
+        Warehouse warehouse = new Warehouse();
+        warehouse.addProduct(product(1, "Före"));
+        RecordingSink sink = new RecordingSink(false);
+        stream(warehouse).subscribe(sink, new SseImpl(), null);
+
+        warehouse.addProduct(product(2, "Hårblekning"));
+        warehouse.addProduct(product(3, "Knäskydd"));
+        warehouse.modifyProduct(2, "Schampo", Categories.health, 6);
+
+        OutboundSseEvent added = sink.next();
+        assertThat(added.getName()).isEqualTo("added");
+        assertThat(added.getData().toString()).contains("Hårblekning");
+        assertThat(sink.next().getName()).isEqualTo("added");
+        OutboundSseEvent modified = sink.next();
+        assertThat(modified.getName()).isEqualTo("modified");
+        assertThat(modified.getData().toString()).contains("Schampo");
+        assertThat(modified.getId()).isEqualTo(eventId(warehouse.getProductVersion(2)));
+        assertThat(sink.events).isEmpty();
+    }
+
+    @Test
+    void resumesAfterLastEventId() throws InterruptedException {
+        Warehouse warehouse = new Warehouse();
+        warehouse.addProduct(product(1, "Hatt"));
+        String afterFirst = eventId(warehouse.getProductVersion(1));
+        warehouse.addProduct(product(2, "Balsam"));
+        warehouse.addProduct(product(3, "Basket"));
+
+        RecordingSink sink = new RecordingSink(false);
+        stream(warehouse).subscribe(sink, new SseImpl(), afterFirst);
+
+        assertThat(sink.next().getId()).isEqualTo(eventId(warehouse.getProductVersion(2)));
+        assertThat(sink.next().getId()).isEqualTo(eventId(warehouse.getProductVersion(3)));
+    }
+
+    @Test
+    void eventIdFromAnotherRunGetsResync() throws InterruptedException {
+        Warehouse warehouse = new Warehouse();
+        warehouse.addProduct(product(1, "Hatt"));
+
+        RecordingSink sink = new RecordingSink(false);
+        stream(warehouse).subscribe(sink, new SseImpl(), "abc-1");
+
+        OutboundSseEvent resync = sink.next();
+        assertThat(resync.getName()).isEqualTo("resync");
+        assertThat(resync.getId()).isEqualTo(eventId(warehouse.getCatalogVersion()));
+
+        // Live changes follow
+        warehouse.addProduct(product(2, "Balsam"));
+        assertThat(sink.next().getName()).isEqualTo("added");
+    }
+
+    @Test
+    void clientThatFallsBehindTheBufferIsDropped() throws InterruptedException {
+        System.setProperty(ChangeFeed.CAPACITY_PROPERTY, "16");
+        Warehouse warehouse;
+        try {
+            warehouse = new Warehouse();
+        } finally {
+            System.clearProperty(ChangeFeed.CAPACITY_PROPERTY);
+        }
+        ChangeStream stream = stream(warehouse);
+        RecordingSink stalled = new RecordingSink(true);
+        stream.subscribe(stalled, new SseImpl(), null);
+
+        // More changes than the client may have unacknowledged plus the whole buffer,
+        // writers are never held up by the client that doesn't read
+        for (int id = 1; id <= 1_000; id++) {
+            warehouse.addProduct(product(id, "Produkt " + id));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!stalled.closed && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(stalled.closed).isTrue();
+        assertThat(stalled.events).extracting(OutboundSseEvent::getName).contains("resync");
+        assertThat(stream.getSubscriberCount()).isZero();
+    }
+}
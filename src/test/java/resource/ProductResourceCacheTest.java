@@ -0,0 +1,116 @@
+package resource;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jboss.resteasy.core.SynchronousDispatcher;
+import org.jboss.resteasy.core.SynchronousExecutionContext;
+import org.jboss.resteasy.mock.MockDispatcherFactory;
+import org.jboss.resteasy.mock.MockHttpRequest;
+import org.jboss.resteasy.mock.MockHttpResponse;
+import org.jboss.resteasy.spi.Dispatcher;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.laboration3.entities.Categories;
+import org.laboration3.entities.Product;
+import org.laboration3.resource.api.ProductResource;
+import org.laboration3.resource.utils.ObjectMapperConvertDate;
+import org.laboration3.resource.utils.ProductSmileProvider;
+import org.laboration3.resource.utils.RequestExecutor;
+import org.laboration3.resource.utils.ResponseCache;
+import org.laboration3.service.Version;
+import org.laboration3.service.Warehouse;
+import org.mockito.InjectMocks;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// The resource against a real Warehouse, for what only shows up when the versions and the products race
+public class ProductResourceCacheTest {
+
+    private final ObjectMapper objectMapper = ObjectMapperConvertDate.configureObjectMapper();
+
+    private Dispatcher dispatcher;
+
+    @InjectMocks
+    private ProductResource productResource;
+
+    @Spy
+    private Warehouse warehouse = new Warehouse();
+
+    @Spy
+    private ResponseCache responseCache = new ResponseCache(1 << 20);
+
+    @Spy
+    private RequestExecutor requestExecutor = new RequestExecutor(RequestExecutor.Mode.PLATFORM);
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        dispatcher = MockDispatcherFactory.createDispatcher();
+        dispatcher.getRegistry().addSingletonResource(productResource);
+        dispatcher.getProviderFactory().registerProvider(ObjectMapperConvertDate.class);
+        dispatcher.getProviderFactory().registerProvider(ProductSmileProvider.class);
+    }
+
+    private MockHttpResponse get(String uri) throws Exception {
+        MockHttpRequest req = MockHttpRequest.get(uri);
+        MockHttpResponse res = new MockHttpResponse();
+        req.setAsynchronousContext(new SynchronousExecutionContext((SynchronousDispatcher) dispatcher, req, res));
+        dispatcher.invoke(req, res);
+        return res;
+    }
+
+    private static long etagNumber(MockHttpResponse res) {
+        String etag = res.getOutputHeaders().getFirst("ETag").toString();
+        return Long.parseLong(etag.substring(etag.indexOf('-') + 1, etag.length() - 1), 16);
+    }
+
+    @Test
+    public void aBodyIsNeverOlderThanItsETag() throws Exception {
+        int changes = 3_000;
+        LocalDateTime date = LocalDateTime.of(2023, 9, 3, 10, 15, 30);
+        warehouse.addProduct(new Product(1, "Namn0", Categories.health, 1, date, date));
+
+        // The version number every name was written with, the names count the changes
+        AtomicLongArray numbers = new AtomicLongArray(changes + 1);
+        numbers.set(0, warehouse.getProductVersion(1).number());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> writer = executor.submit(() -> {
+            Version current = warehouse.getProductVersion(1);
+            for (int k = 1; k <= changes; k++) {
+                current = warehouse.modifyProduct(1, current, "Namn" + k, Categories.health, 1 + k % 10);
+                numbers.set(k, current.number());
+            }
+        });
+
+        List<long[]> seen = new ArrayList<>();
+        while (!writer.isDone()) {
+            MockHttpResponse res = get("/products/1");
+            Product product = objectMapper.readValue(res.getOutput(), Product.class);
+            seen.add(new long[]{etagNumber(res), Integer.parseInt(product.name().substring(4))});
+        }
+        writer.get();
+        executor.shutdown();
+        assertThat(executor.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+
+        // The body may already be newer than the ETag says, never older, or it would be cached as the newer version
+        for (long[] response : seen) {
+            assertThat(numbers.get((int) response[1])).as("body of ETag %d", response[0]).isGreaterThanOrEqualTo(response[0]);
+        }
+
+        // Once the writes are done a GET gets the last change, whatever the cache held on to
+        MockHttpResponse last = get("/products/1");
+        assertThat(etagNumber(last)).isEqualTo(numbers.get(changes));
+        assertThat(objectMapper.readValue(last.getOutput(), Product.class).name()).isEqualTo("Namn" + changes);
+    }
+}
@@ -6,35 +6,60 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.ws.rs.BadRequestException;
 import jakarta.ws.rs.NotFoundException;
+import org.jboss.resteasy.core.SynchronousDispatcher;
+import org.jboss.resteasy.core.SynchronousExecutionContext;
 import org.jboss.resteasy.mock.MockDispatcherFactory;
 import org.jboss.resteasy.mock.MockHttpRequest;
 import org.jboss.resteasy.mock.MockHttpResponse;
 import org.jboss.resteasy.spi.Dispatcher;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.laboration3.Interceptor.Compression;
 import org.laboration3.entities.Categories;
 import org.laboration3.entities.Product;
 import org.laboration3.resource.utils.ObjectMapperConvertDate;
+import org.laboration3.resource.utils.ProductSmileProvider;
+import org.laboration3.resource.utils.RequestExecutor;
+import org.laboration3.resource.utils.ResponseCache;
 import org.laboration3.resource.api.ProductResource;
+import org.laboration3.service.CatalogStats;
+import org.laboration3.service.ProductQuery;
+import org.laboration3.service.Version;
 import org.laboration3.service.Warehouse;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.MockitoAnnotations;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 
@@ -67,12 +92,30 @@ public class ProductResourceTest {
     @Mock
     private Warehouse warehouse;
 
+    @Spy
+    private ResponseCache responseCache = new ResponseCache(1 << 20);
+
+    @Spy
+    private RequestExecutor requestExecutor = new RequestExecutor(RequestExecutor.Mode.PLATFORM);
+
     @BeforeEach
     public void setUp() {
         MockitoAnnotations.initMocks(this);
         dispatcher = MockDispatcherFactory.createDispatcher();
         dispatcher.getRegistry().addSingletonResource(productResource);
         dispatcher.getProviderFactory().registerProvider(ObjectMapperConvertDate.class);
+        dispatcher.getProviderFactory().registerProvider(ProductSmileProvider.class);
+
+        Version version = new Version(1, 1, LocalDateTime.now());
+        when(warehouse.getCatalogVersion()).thenReturn(version);
+        when(warehouse.getCategoryVersion(any())).thenReturn(version);
+        when(warehouse.getProductVersion(anyInt())).thenReturn(version);
+    }
+
+    // The mock request needs an execution context for the endpoints that suspend, invoke waits until they resume
+    private void invoke(MockHttpRequest req, MockHttpResponse res) {
+        req.setAsynchronousContext(new SynchronousExecutionContext((SynchronousDispatcher) dispatcher, req, res));
+        dispatcher.invoke(req, res);
     }
 
     @Test
@@ -82,7 +125,7 @@ public class ProductResourceTest {
         MockHttpRequest req = MockHttpRequest.get("/products");
         MockHttpResponse res = new MockHttpResponse();
 
-        dispatcher.invoke(req, res);
+        invoke(req, res);
 
         assertThrows(NotFoundException.class, () -> productResource.getProducts());
         assertThat(res.getStatus()).isEqualTo(404);
@@ -91,12 +134,13 @@ public class ProductResourceTest {
 
     @Test
     public void productsAvailable() throws URISyntaxException, JsonProcessingException, UnsupportedEncodingException {
-        when(warehouse.getProductsArr()).thenReturn(MockedProducts());
+        when(warehouse.getProductCount()).thenReturn(4);
+        when(warehouse.getProductPage(eq(0), anyInt())).thenReturn(MockedProducts());
 
         MockHttpRequest req = MockHttpRequest.get("/products");
         MockHttpResponse res = new MockHttpResponse();
 
-        dispatcher.invoke(req, res);
+        invoke(req, res);
 
         assertThat(res.getStatus()).isEqualTo(202);
 
@@ -119,7 +163,7 @@ public class ProductResourceTest {
         MockHttpResponse res = new MockHttpResponse();
 
 
-        dispatcher.invoke(req, res);
+        invoke(req, res);
 
         assertThat(res.getStatus()).isEqualTo(404);
         assertThrows(NotFoundException.class, () -> productResource.getProductById(2));
@@ -133,7 +177,7 @@ public class ProductResourceTest {
         MockHttpRequest req = MockHttpRequest.get("/products/2");
         MockHttpResponse res = new MockHttpResponse();
 
-        dispatcher.invoke(req, res);
+        invoke(req, res);
         assertThat(res.getStatus()).isEqualTo(200);
 
 
@@ -149,6 +193,286 @@ public class ProductResourceTest {
 
     }
 
+    @Test
+    public void unchangedProductIsNotSentAgain() throws URISyntaxException {
+        when(warehouse.getProductBasedOnId(2)).thenReturn(Collections.singletonList(MockedProducts().get(1)));
+        when(warehouse.getProductVersion(2)).thenReturn(new Version(7, 42, LocalDateTime.now()));
+
+        MockHttpResponse first = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products/2"), first);
+        String etag = first.getOutputHeaders().getFirst("ETag").toString();
+        assertThat(etag).isEqualTo("\"7-2a\"");
+
+        MockHttpResponse second = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products/2").header("If-None-Match", etag), second);
+        assertThat(second.getStatus()).isEqualTo(304);
+        assertThat(second.getOutput()).isEmpty();
+
+        // A new version of the product is sent in full
+        when(warehouse.getProductVersion(2)).thenReturn(new Version(7, 43, LocalDateTime.now()));
+        MockHttpResponse third = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products/2").header("If-None-Match", etag), third);
+        assertThat(third.getStatus()).isEqualTo(200);
+    }
+
+    @Test
+    public void unchangedCatalogIsNotReadAgain() throws URISyntaxException {
+        when(warehouse.getProductCount()).thenReturn(4);
+        when(warehouse.getProductPage(eq(0), anyInt())).thenReturn(MockedProducts());
+
+        MockHttpResponse first = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products"), first);
+        assertThat(first.getStatus()).isEqualTo(202);
+
+        MockHttpRequest req = MockHttpRequest.get("/products")
+                .header("If-None-Match", first.getOutputHeaders().getFirst("ETag").toString());
+        MockHttpResponse res = new MockHttpResponse();
+        invoke(req, res);
+
+        assertThat(res.getStatus()).isEqualTo(304);
+        verify(warehouse, times(1)).getProductPage(eq(0), anyInt());
+    }
+
+    @Test
+    public void categoryIsServedFromCacheUntilItChanges() throws Exception {
+        when(warehouse.getHowManyProductsRelatedToCategory(Categories.health)).thenReturn(3);
+        when(warehouse.getProductsInCategoryAfterId(eq(Categories.health), anyInt(), anyInt())).thenReturn(MockedProducts().subList(0, 3));
+        when(warehouse.getCategoryVersion(Categories.health)).thenReturn(new Version(1, 5, LocalDateTime.now()));
+
+        MockHttpResponse first = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products/category/health"), first);
+        MockHttpResponse second = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products/category/health"), second);
+
+        assertThat(second.getContentAsString()).isEqualTo(first.getContentAsString());
+        verify(warehouse, times(1)).getProductsInCategoryAfterId(eq(Categories.health), anyInt(), anyInt());
+
+        // A change in the category makes the cached bytes stale
+        when(warehouse.getCategoryVersion(Categories.health)).thenReturn(new Version(1, 6, LocalDateTime.now()));
+        when(warehouse.getProductsInCategoryAfterId(eq(Categories.health), anyInt(), anyInt())).thenReturn(MockedProducts().subList(0, 2));
+        MockHttpResponse third = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products/category/health"), third);
+
+        assertThat(objectRepresentation(third)).hasSize(2);
+        assertThat(responseCache.toPrometheusText())
+                .contains("warehouse_response_cache_hits_total 1")
+                .contains("warehouse_response_cache_misses_total 2");
+    }
+
+    @Test
+    public void putNeedsTheCurrentETag() throws Exception {
+        dispatcher.getProviderFactory().registerProvider(org.laboration3.resource.Exception.ConcurrentModificationException.class);
+        Version current = new Version(1, 10, LocalDateTime.now());
+        when(warehouse.getProductVersion(2)).thenReturn(current);
+        when(warehouse.modifyProduct(eq(2), eq(current), any(), any(), anyInt()))
+                .thenReturn(new Version(1, 11, LocalDateTime.now()));
+        byte[] body = "{\"name\": \"Schampo\", \"category\": \"health\", \"rating\": 6}".getBytes(StandardCharsets.UTF_8);
+
+        MockHttpResponse withoutIfMatch = new MockHttpResponse();
+        invoke(MockHttpRequest.put("/products/2").contentType("application/json").content(body), withoutIfMatch);
+        assertThat(withoutIfMatch.getStatus()).isEqualTo(428);
+
+        MockHttpResponse stale = new MockHttpResponse();
+        invoke(MockHttpRequest.put("/products/2").contentType("application/json")
+                .header("If-Match", "\"1-9\"").content(body), stale);
+        assertThat(stale.getStatus()).isEqualTo(412);
+
+        MockHttpResponse updated = new MockHttpResponse();
+        invoke(MockHttpRequest.put("/products/2").contentType("application/json")
+                .header("If-Match", "\"1-a\"").content(body), updated);
+        assertThat(updated.getStatus()).isEqualTo(204);
+        assertThat(updated.getOutputHeaders().getFirst("ETag").toString()).isEqualTo("\"1-b\"");
+    }
+
+    @Test
+    public void catalogIsSentAsSmileWhenAsked() throws Exception {
+        when(warehouse.getProductCount()).thenReturn(4);
+        when(warehouse.getProductPage(eq(0), anyInt())).thenReturn(MockedProducts());
+
+        MockHttpResponse json = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products"), json);
+
+        MockHttpResponse smile = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products").accept(ObjectMapperConvertDate.APPLICATION_SMILE), smile);
+        assertThat(smile.getStatus()).isEqualTo(202);
+        assertThat(smile.getOutputHeaders().getFirst("Content-Type").toString()).isEqualTo(ObjectMapperConvertDate.APPLICATION_SMILE);
+        assertThat(smile.getOutputHeaders().getFirst("Vary").toString()).contains("Accept");
+        assertThat(smile.getOutput().length).isLessThan(json.getOutput().length);
+
+        ObjectMapper smileMapper = ObjectMapperConvertDate.smileObjectMapper();
+        List<Product> products = smileMapper.readValue(smile.getOutput(),
+                smileMapper.getTypeFactory().constructCollectionType(List.class, Product.class));
+        assertThat(products).extracting(Product::name).containsExactly("Produkt1", "Produkt2", "Produkt3", "Produkt4");
+
+        // Both representations are cached and tagged apart, the JSON ETag doesn't give a Smile client a 304
+        String smileTag = smile.getOutputHeaders().getFirst("ETag").toString();
+        assertThat(smileTag).isEqualTo("\"1-1.smile\"");
+        MockHttpResponse jsonTagged = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products").accept(ObjectMapperConvertDate.APPLICATION_SMILE)
+                .header("If-None-Match", json.getOutputHeaders().getFirst("ETag").toString()), jsonTagged);
+        assertThat(jsonTagged.getStatus()).isEqualTo(202);
+        assertThat(jsonTagged.getOutput()).isEqualTo(smile.getOutput());
+        verify(warehouse, times(2)).getProductPage(eq(0), anyInt());
+
+        MockHttpResponse notModified = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products").accept(ObjectMapperConvertDate.APPLICATION_SMILE)
+                .header("If-None-Match", smileTag), notModified);
+        assertThat(notModified.getStatus()).isEqualTo(304);
+    }
+
+    @Test
+    public void postAndPutProductAsSmile() throws Exception {
+        Product newProduct = new Product(8, "NyProdukt", Categories.sport, 5, LocalDateTime.now(), LocalDateTime.now());
+        byte[] body = ObjectMapperConvertDate.smileProductWriter().writeValueAsBytes(newProduct);
+
+        MockHttpResponse created = new MockHttpResponse();
+        invoke(MockHttpRequest.post("/products").contentType(ObjectMapperConvertDate.APPLICATION_SMILE)
+                .accept(ObjectMapperConvertDate.APPLICATION_SMILE).content(body), created);
+        assertThat(created.getStatus()).isEqualTo(201);
+        Product answer = ObjectMapperConvertDate.smileProductReader().readValue(created.getOutput());
+        assertThat(answer).isEqualToIgnoringGivenFields(newProduct, "createdDate", "lastModifiedDate");
+        verify(warehouse).addProduct(any());
+
+        // The Smile ETag of the current version is as good as the JSON one
+        Version current = new Version(1, 10, LocalDateTime.now());
+        when(warehouse.getProductVersion(8)).thenReturn(current);
+        when(warehouse.modifyProduct(eq(8), eq(current), any(), any(), anyInt()))
+                .thenReturn(new Version(1, 11, LocalDateTime.now()));
+        MockHttpResponse updated = new MockHttpResponse();
+        invoke(MockHttpRequest.put("/products/8").contentType(ObjectMapperConvertDate.APPLICATION_SMILE)
+                .header("If-Match", "\"1-a.smile\"").content(body), updated);
+        assertThat(updated.getStatus()).isEqualTo(204);
+    }
+
+    @Test
+    public void largeListingsAreCompressedAndKeptCompressed() throws Exception {
+        dispatcher.getProviderFactory().registerProvider(Compression.class);
+        List<Product> catalog = new ArrayList<>();
+        for (int id = 1; id <= 50; id++) {
+            catalog.add(new Product(id, "Produkt" + id, Categories.sport, 1 + id % 10, LocalDateTime.now(), LocalDateTime.now()));
+        }
+        when(warehouse.getProductCount()).thenReturn(catalog.size());
+        when(warehouse.getProductPage(eq(0), anyInt())).thenReturn(catalog);
+
+        // A miss is compressed by the interceptor while it is written
+        MockHttpResponse streamed = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products").header("Accept-Encoding", "gzip, deflate"), streamed);
+        assertThat(streamed.getOutputHeaders().getFirst("Content-Encoding")).isEqualTo("gzip");
+        assertThat(streamed.getOutputHeaders().get("Vary")).contains("Accept-Encoding");
+        assertThat(products(new GZIPInputStream(new ByteArrayInputStream(streamed.getOutput())))).hasSize(50);
+
+        // The next one compresses the cached bytes once, after that they are sent as they are
+        MockHttpResponse compressedOnce = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products").header("Accept-Encoding", "gzip"), compressedOnce);
+        MockHttpResponse precompressed = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products").header("Accept-Encoding", "gzip"), precompressed);
+        assertThat(precompressed.getOutputHeaders().getFirst("Content-Encoding")).isEqualTo("gzip");
+        assertThat(precompressed.getOutputHeaders().get("Vary")).contains("Accept-Encoding");
+        assertThat(precompressed.getOutput()).isEqualTo(compressedOnce.getOutput());
+        assertThat(products(new GZIPInputStream(new ByteArrayInputStream(precompressed.getOutput())))).hasSize(50);
+        verify(responseCache, times(1)).put(eq(new ResponseCache.Key("products.gzip", "")), any(), any());
+        verify(warehouse, times(1)).getProductPage(eq(0), anyInt());
+
+        MockHttpResponse deflated = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products").header("Accept-Encoding", "gzip;q=0.5, deflate"), deflated);
+        assertThat(deflated.getOutputHeaders().getFirst("Content-Encoding")).isEqualTo("deflate");
+        assertThat(products(new InflaterInputStream(new ByteArrayInputStream(deflated.getOutput())))).hasSize(50);
+
+        MockHttpResponse identity = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products"), identity);
+        assertThat(identity.getOutputHeaders().getFirst("Content-Encoding")).isNull();
+        assertThat(objectRepresentation(identity)).hasSize(50);
+    }
+
+    @Test
+    public void compressedListingsHaveTheirOwnETag() throws Exception {
+        dispatcher.getProviderFactory().registerProvider(Compression.class);
+        List<Product> catalog = new ArrayList<>();
+        for (int id = 1; id <= 50; id++) {
+            catalog.add(new Product(id, "Produkt" + id, Categories.sport, 1 + id % 10, LocalDateTime.now(), LocalDateTime.now()));
+        }
+        when(warehouse.getProductCount()).thenReturn(catalog.size());
+        when(warehouse.getProductPage(eq(0), anyInt())).thenReturn(catalog);
+        when(warehouse.getChangesSince(1, 1000)).thenReturn(new Warehouse.Changes(Collections.emptyList(), 1, false));
+
+        // Compressed while it is written, then from the cache, the tag follows the bytes either way
+        for (int i = 0; i < 3; i++) {
+            MockHttpResponse gzipped = new MockHttpResponse();
+            invoke(MockHttpRequest.get("/products").header("Accept-Encoding", "gzip"), gzipped);
+            assertThat(gzipped.getOutputHeaders().getFirst("ETag").toString()).isEqualTo("\"1-1.gzip\"");
+        }
+        MockHttpResponse deflated = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products").header("Accept-Encoding", "deflate"), deflated);
+        assertThat(deflated.getOutputHeaders().getFirst("ETag").toString()).isEqualTo("\"1-1.deflate\"");
+        MockHttpResponse identity = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products"), identity);
+        assertThat(identity.getOutputHeaders().getFirst("ETag").toString()).isEqualTo("\"1-1\"");
+
+        // The compressed tag still names the version, for a 304 and for the changes since it
+        MockHttpResponse notModified = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products").header("Accept-Encoding", "gzip")
+                .header("If-None-Match", "\"1-1.gzip\""), notModified);
+        assertThat(notModified.getStatus()).isEqualTo(304);
+        assertThat(notModified.getOutputHeaders().getFirst("ETag").toString()).isEqualTo("\"1-1.gzip\"");
+
+        MockHttpResponse since = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products/since/%221-1.gzip%22"), since);
+        assertThat(since.getStatus()).isEqualTo(200);
+        verify(warehouse).getChangesSince(1, 1000);
+    }
+
+    @Test
+    public void smallResponsesAreNotCompressed() throws Exception {
+        dispatcher.getProviderFactory().registerProvider(Compression.class);
+        when(warehouse.getProductBasedOnId(2)).thenReturn(Collections.singletonList(MockedProducts().get(1)));
+
+        MockHttpResponse res = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products/2").header("Accept-Encoding", "gzip"), res);
+
+        assertThat(res.getStatus()).isEqualTo(200);
+        assertThat(res.getOutputHeaders().getFirst("Content-Encoding")).isNull();
+        assertThat(objectRepresentation(res).get(0).name()).isEqualTo("Produkt2");
+    }
+
+    private List<Product> products(InputStream body) throws Exception {
+        try (body) {
+            return objectMapper.readValue(body, objectMapper.getTypeFactory().constructCollectionType(List.class, Product.class));
+        }
+    }
+
+    @Test
+    public void writesAnsweredFromTheRequestExecutorKeepTheirErrors() throws Exception {
+        dispatcher.getProviderFactory().registerProvider(org.laboration3.resource.Exception.ConcurrentModificationException.class);
+        ExecutorService requestThreads = Executors.newSingleThreadExecutor(task -> new Thread(task, "request-thread"));
+        RequestExecutor offloaded = new RequestExecutor(requestThreads);
+        doAnswer(invoke -> {
+            offloaded.execute(invoke.getArgument(0), invoke.getArgument(1));
+            return null;
+        }).when(requestExecutor).execute(any(), any());
+
+        Version current = new Version(1, 10, LocalDateTime.now());
+        when(warehouse.getProductVersion(2)).thenReturn(current);
+        List<String> modifiedOn = new ArrayList<>();
+        when(warehouse.modifyProduct(eq(2), eq(current), any(), any(), anyInt())).thenAnswer(invoke -> {
+            modifiedOn.add(Thread.currentThread().getName());
+            return new Version(1, 11, LocalDateTime.now());
+        });
+        byte[] body = "{\"name\": \"Schampo\", \"category\": \"health\", \"rating\": 6}".getBytes(StandardCharsets.UTF_8);
+
+        MockHttpResponse stale = new MockHttpResponse();
+        invoke(MockHttpRequest.put("/products/2").contentType("application/json")
+                .header("If-Match", "\"1-9\"").content(body), stale);
+        assertThat(stale.getStatus()).isEqualTo(412);
+
+        MockHttpResponse updated = new MockHttpResponse();
+        invoke(MockHttpRequest.put("/products/2").contentType("application/json")
+                .header("If-Match", "\"1-a\"").content(body), updated);
+        assertThat(updated.getStatus()).isEqualTo(204);
+        assertThat(modifiedOn).containsExactly("request-thread");
+
+        offloaded.shutdown();
+    }
+
     @Test
     public void usingInvalidTotalQueries() throws Exception {
 
@@ -157,7 +481,7 @@ public class ProductResourceTest {
 
         MockHttpRequest req = MockHttpRequest.get("/products/filter/size?start=3&end=2");
         MockHttpResponse res = new MockHttpResponse();
-        dispatcher.invoke(req, res);
+        invoke(req, res);
 
 
         assertThat(res.getStatus()).isEqualTo(400);
@@ -167,12 +491,12 @@ public class ProductResourceTest {
 
     @Test
     public void usingQueryTotalProducts() throws URISyntaxException, UnsupportedEncodingException, JsonProcessingException {
-        when(warehouse.getProductsArr()).thenReturn(MockedProducts());
+        when(warehouse.getProductsInIdRange(eq(2), eq(4), anyInt())).thenReturn(MockedProducts().subList(1, 4));
 
         MockHttpRequest req = MockHttpRequest.get("/products/filter/size?start=2&&end=4");
         MockHttpResponse res = new MockHttpResponse();
 
-        dispatcher.invoke(req, res);
+        invoke(req, res);
         assertThat(res.getStatus()).isEqualTo(200);
 
         List<Product> products = objectRepresentation(res);
@@ -192,22 +516,35 @@ public class ProductResourceTest {
         MockHttpRequest req = MockHttpRequest.get("/products/pagination?size=10&page=1");
         MockHttpResponse res = new MockHttpResponse();
 
-        dispatcher.invoke(req, res);
+        invoke(req, res);
 
 
         assertThat(res.getStatus()).isEqualTo(400);
 
-        assertThrows(BadRequestException.class, () -> productResource.getProductsWithPagination(2, 3));
+        assertThrows(BadRequestException.class, () -> productResource.getProductsWithPagination(2, 3, null, 10));
+
+        when(warehouse.getProductCount()).thenReturn(4);
+        MockHttpResponse emptyPage = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products/pagination?size=0&page=1"), emptyPage);
+        assertThat(emptyPage.getStatus()).isEqualTo(400);
+
+        // (page - 1) * size is past Integer.MAX_VALUE
+        MockHttpResponse farPage = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products/pagination?size=1000&page=" + Integer.MAX_VALUE), farPage);
+        assertThat(farPage.getStatus()).isEqualTo(200);
+        assertThat(objectMapper.readTree(farPage.getContentAsString()).get("products").size()).isZero();
+        verify(warehouse, never()).getProductPage(anyInt(), anyInt());
     }
 
     @Test
     public void usingPagination() throws URISyntaxException, UnsupportedEncodingException, JsonProcessingException {
-        when(warehouse.getProductsArr()).thenReturn(MockedProducts());
+        when(warehouse.getProductCount()).thenReturn(4);
+        when(warehouse.getProductPage(0, 3)).thenReturn(MockedProducts().subList(0, 3));
 
         MockHttpRequest req = MockHttpRequest.get("/products/pagination?page=1&size=2");
         MockHttpResponse res = new MockHttpResponse();
 
-        dispatcher.invoke(req, res);
+        invoke(req, res);
 
         assertThat(res.getStatus()).isEqualTo(200);
 
@@ -223,7 +560,147 @@ public class ProductResourceTest {
         JsonNode products = jsonRes.get("products");
         assertThat(products).isNotNull();
         assertThat(products.size()).isEqualTo(2);
+        assertThat(pagination.get("next").asInt()).isEqualTo(2);
+
+    }
+
+    @Test
+    public void usingKeysetPagination() throws URISyntaxException, UnsupportedEncodingException, JsonProcessingException {
+        when(warehouse.getProductCount()).thenReturn(4);
+        when(warehouse.getProductsAfterId(2, 3)).thenReturn(MockedProducts().subList(2, 4));
+
+        MockHttpRequest req = MockHttpRequest.get("/products/pagination?after=2&limit=2");
+        MockHttpResponse res = new MockHttpResponse();
+
+        invoke(req, res);
+
+        assertThat(res.getStatus()).isEqualTo(200);
+
+        JsonNode jsonRes = objectMapper.readTree(res.getContentAsString());
+
+        JsonNode pagination = jsonRes.get("pagination");
+        assertThat(pagination.get("size").asInt()).isEqualTo(2);
+        assertThat(pagination.get("limit").asInt()).isEqualTo(2);
+        // Last page, no cursor to continue from
+        assertThat(pagination.get("next").isNull()).isTrue();
+
+        JsonNode products = jsonRes.get("products");
+        assertThat(products.get(0).get("id").asInt()).isEqualTo(3);
+        assertThat(products.get(1).get("id").asInt()).isEqualTo(4);
+    }
+
+    @Test
+    public void searchingProductsByName() throws Exception {
+        when(warehouse.searchByName("hår", 0, 3)).thenReturn(MockedProducts().subList(0, 3));
+
+        MockHttpResponse res = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products/search?q=h%C3%A5r&size=2"), res);
+
+        assertThat(res.getStatus()).isEqualTo(200);
+        JsonNode jsonRes = objectMapper.readTree(res.getContentAsString());
+        assertThat(jsonRes.get("products").size()).isEqualTo(2);
+        assertThat(jsonRes.get("pagination").get("next").asInt()).isEqualTo(2);
+
+        MockHttpResponse missingQuery = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products/search"), missingQuery);
+        assertThat(missingQuery.getStatus()).isEqualTo(400);
+
+        MockHttpResponse noMatch = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products/search?q=majs"), noMatch);
+        assertThat(noMatch.getStatus()).isEqualTo(404);
+
+        // (page - 1) * size is past Integer.MAX_VALUE, there is no such page to search for
+        when(warehouse.getProductCount()).thenReturn(5);
+        MockHttpResponse farPage = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products/search?q=h%C3%A5r&size=1000&page=" + Integer.MAX_VALUE), farPage);
+        assertThat(farPage.getStatus()).isEqualTo(200);
+        assertThat(objectMapper.readTree(farPage.getContentAsString()).get("products").size()).isZero();
+        verify(warehouse, times(2)).searchByName(anyString(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void onlyChangesSinceAVersionAreSent() throws Exception {
+        when(warehouse.getChangesSince(1, 1000)).thenReturn(new Warehouse.Changes(MockedProducts().subList(0, 2), 9, false));
+        when(warehouse.getChangesSince(0, 2)).thenReturn(new Warehouse.Changes(MockedProducts().subList(0, 2), 3, true));
 
+        MockHttpResponse res = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products/since/1-1"), res);
+        assertThat(res.getStatus()).isEqualTo(200);
+        JsonNode jsonRes = objectMapper.readTree(res.getContentAsString());
+        assertThat(jsonRes.get("products").size()).isEqualTo(2);
+        assertThat(jsonRes.get("pagination").get("version").asText()).isEqualTo("1-9");
+        assertThat(jsonRes.get("pagination").get("more").asBoolean()).isFalse();
+
+        // A version from another run of the service starts over
+        MockHttpResponse reset = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products/since/2-5?limit=2"), reset);
+        JsonNode resetRes = objectMapper.readTree(reset.getContentAsString());
+        assertThat(resetRes.get("pagination").get("reset").asBoolean()).isTrue();
+        assertThat(resetRes.get("pagination").get("more").asBoolean()).isTrue();
+
+        MockHttpResponse invalid = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products/since/igår"), invalid);
+        assertThat(invalid.getStatus()).isEqualTo(400);
+    }
+
+    @Test
+    public void statsAreServedFromCacheUntilTheCatalogChanges() throws Exception {
+        LocalDateTime since = LocalDateTime.of(2023, 7, 1, 0, 0);
+        CatalogStats.Figures sport = new CatalogStats.Figures(2, 7.5, new long[]{0, 0, 0, 0, 0, 1, 0, 0, 1, 0}, 1, 1);
+        CatalogStats.Figures none = new CatalogStats.Figures(0, 0, new long[10], 0, 0);
+        Map<Categories, CatalogStats.Figures> categories = new EnumMap<>(Categories.class);
+        for (Categories category : Categories.values()) {
+            categories.put(category, category == Categories.sport ? sport : none);
+        }
+        when(warehouse.getStats(since)).thenReturn(new CatalogStats(since, sport, categories));
+
+        for (int i = 0; i < 2; i++) {
+            MockHttpResponse res = new MockHttpResponse();
+            invoke(MockHttpRequest.get("/products/stats?since=2023-07-01"), res);
+
+            assertThat(res.getStatus()).isEqualTo(200);
+            JsonNode stats = objectMapper.readTree(res.getContentAsString());
+            assertThat(stats.get("total").get("products").asLong()).isEqualTo(2);
+            assertThat(stats.get("total").get("averageRating").asDouble()).isEqualTo(7.5);
+            assertThat(stats.get("categories").get("sport").get("ratings").get(8).asLong()).isEqualTo(1);
+            assertThat(stats.get("categories").get("health").get("products").asLong()).isZero();
+        }
+        verify(warehouse, times(1)).getStats(since);
+
+        MockHttpResponse invalid = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products/stats?since=igår"), invalid);
+        assertThat(invalid.getStatus()).isEqualTo(400);
+    }
+
+    @Test
+    public void queryCombinesPredicatesAndTellsThePlan() throws Exception {
+        Product hat = MockedProducts().get(0);
+        ArgumentCaptor<ProductQuery> query = ArgumentCaptor.forClass(ProductQuery.class);
+        when(warehouse.query(query.capture())).thenReturn(new Warehouse.QueryResult(List.of(hat), Warehouse.AccessPath.CATEGORY));
+
+        MockHttpResponse res = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products/query?category=clothes&minRating=8&createdAfter=2023-09-01&sort=name&limit=5000"), res);
+
+        assertThat(res.getStatus()).isEqualTo(200);
+        assertThat(res.getOutputHeaders().getFirst("X-Query-Plan")).isEqualTo("category");
+        assertThat(objectRepresentation(res)).containsExactly(hat);
+        assertThat(query.getValue()).isEqualTo(ProductQuery.all()
+                .withCategory(Categories.clothes)
+                .withRatings(8, null)
+                .withCreatedAfter(LocalDateTime.of(2023, 9, 1, 0, 0))
+                .sortedBy(ProductQuery.Sort.NAME)
+                .limitedTo(1000));
+
+        when(warehouse.query(any())).thenReturn(new Warehouse.QueryResult(List.of(), Warehouse.AccessPath.SCAN));
+        MockHttpResponse none = new MockHttpResponse();
+        invoke(MockHttpRequest.get("/products/query?minRating=11"), none);
+        assertThat(none.getStatus()).isEqualTo(404);
+
+        for (String invalid : List.of("sort=price", "category=majs", "createdAfter=igår", "limit=0")) {
+            MockHttpResponse bad = new MockHttpResponse();
+            invoke(MockHttpRequest.get("/products/query?" + invalid), bad);
+            assertThat(bad.getStatus()).as(invalid).isEqualTo(400);
+        }
     }
 
     @Test
@@ -233,7 +710,7 @@ public class ProductResourceTest {
         MockHttpRequest req = MockHttpRequest.get("/products/category/majs");
         MockHttpResponse res = new MockHttpResponse();
 
-        dispatcher.invoke(req, res);
+        invoke(req, res);
 
 
         assertThat(res.getStatus()).isEqualTo(404);
@@ -245,10 +722,12 @@ public class ProductResourceTest {
     @Test
     public void usingCategoryFiltering() throws URISyntaxException, UnsupportedEncodingException, JsonProcessingException {
 
-        when(warehouse.getProductsArr()).thenReturn(MockedProducts());
+        List<Product> healthProducts = MockedProducts().subList(0, 3);
+        when(warehouse.getHowManyProductsRelatedToCategory(Categories.health)).thenReturn(3);
+        when(warehouse.getProductsInCategoryAfterId(eq(Categories.health), anyInt(), anyInt())).thenReturn(healthProducts);
         MockHttpRequest req = MockHttpRequest.get("/products/category/health");
         MockHttpResponse res = new MockHttpResponse();
-        dispatcher.invoke(req, res);
+        invoke(req, res);
 
         assertThat(res.getStatus()).isEqualTo(200);
         assertThat(res).isNotNull();
@@ -283,7 +762,7 @@ public class ProductResourceTest {
         req.content(objectMapper.writeValueAsString(newProduct).getBytes());
         MockHttpResponse res = new MockHttpResponse();
 
-        dispatcher.invoke(req, res);
+        invoke(req, res);
         assertEquals(201, res.getStatus());
 
         List<Product> productsArr = warehouse.getProductsArr();
@@ -293,6 +772,57 @@ public class ProductResourceTest {
     }
 
 
+    @Test
+    public void postProductsInBulk() throws Exception {
+        when(warehouse.addProducts(any())).thenAnswer(invoke -> {
+            List<Product> batch = new ArrayList<>(invoke.getArgument(0));
+            // Second parsed product is already taken
+            return batch.size() > 1 ? Map.of(1, "Kan inte lägga till product " + batch.get(1).id()) : Map.of();
+        });
+
+        String ndjson = """
+                {"id": 20, "name": "Keps", "category": "clothes", "rating": 3}
+                {"id": 21, "name": "Mössa", "category": "inte-en-kategori", "rating": 3}
+                {"id": 22, "name": "Vantar", "category": "clothes", "rating": 4}
+                {"id": 23, "name": "Halsduk", "category": "clothes", "rating": 5}
+                """;
+
+        MockHttpRequest req = MockHttpRequest.post("/products/bulk");
+        req.contentType("application/x-ndjson");
+        req.content(ndjson.getBytes(StandardCharsets.UTF_8));
+        MockHttpResponse res = new MockHttpResponse();
+
+        invoke(req, res);
+
+        assertThat(res.getStatus()).isEqualTo(200);
+
+        JsonNode result = objectMapper.readTree(res.getContentAsString());
+        assertThat(result.get("created").asInt()).isEqualTo(2);
+        assertThat(result.get("failed").asInt()).isEqualTo(2);
+
+        // Errors point at the position in the request body
+        JsonNode errors = result.get("errors");
+        assertThat(errors.get(0).get("index").asInt()).isEqualTo(1);
+        assertThat(errors.get(1).get("index").asInt()).isEqualTo(2);
+        assertThat(errors.get(1).get("id").asInt()).isEqualTo(22);
+    }
+
+    @Test
+    public void postProductsInBulkAsJsonArray() throws Exception {
+        when(warehouse.addProducts(any())).thenReturn(Map.of());
+
+        MockHttpRequest req = MockHttpRequest.post("/products/bulk");
+        req.contentType("application/json");
+        req.content(objectMapper.writeValueAsBytes(MockedProducts()));
+        MockHttpResponse res = new MockHttpResponse();
+
+        invoke(req, res);
+
+        JsonNode result = objectMapper.readTree(res.getContentAsString());
+        assertThat(result.get("created").asInt()).isEqualTo(4);
+        assertThat(result.get("errors").size()).isEqualTo(0);
+    }
+
     private static List<Product> MockedProducts() {
 
         List<Product> mockedProducts = new ArrayList<>();
@@ -0,0 +1,173 @@
+package service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.laboration3.entities.Categories;
+import org.laboration3.entities.Product;
+import org.laboration3.service.ProductLog;
+import org.laboration3.service.Warehouse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ProductLogTest {
+
+    @TempDir
+    Path directory;
+
+    private final LocalDateTime date = LocalDateTime.of(2023, 9, 3, 10, 15, 30);
+
+    // A warehouse that is simply dropped without stopping, like after a crash
+    private Warehouse open(ProductLog.Durability durability) throws IOException {
+        Warehouse warehouse = new Warehouse();
+        warehouse.openPersistence(directory, durability);
+        return warehouse;
+    }
+
+    private List<Path> logSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(f -> f.getFileName().toString().startsWith("products.log.")).sorted().toList();
+        }
+    }
+
+    @Test
+    void replaysAddsAndModificationsAfterACrash() throws IOException {
+        Warehouse warehouse = open(ProductLog.Durability.SYNC);
+        warehouse.addProduct(new Product(1, "Hårblekning", Categories.health, 2, date, date));
+        warehouse.addProduct(new Product(2, "Knäskydd", Categories.clothes, 5, date, date));
+        warehouse.modifyProduct(2, "Armbåga", Categories.sport, 7);
+
+        Warehouse restarted = open(ProductLog.Durability.SYNC);
+
+        assertThat(restarted.getProductsArr()).containsExactlyElementsOf(warehouse.getProductsArr());
+        assertThat(restarted.getProductBasedOnCategory(Categories.clothes)).isEmpty();
+        assertThat(restarted.getProductThatBeenModified()).extracting(Product::id).containsExactly(2);
+        assertEquals(warehouse.getMap(), restarted.getMap());
+    }
+
+    @Test
+    void compactionFoldsTheLogIntoTheSnapshot() throws IOException {
+        Warehouse warehouse = open(ProductLog.Durability.SYNC);
+        warehouse.addProduct(new Product(1, "Hårblekning", Categories.health, 2, date, date));
+        warehouse.compact();
+        warehouse.addProduct(new Product(2, "Knäskydd", Categories.clothes, 5, date, date));
+
+        // Only the segment written after the snapshot is left
+        assertThat(logSegments()).hasSize(1);
+
+        Warehouse restarted = open(ProductLog.Durability.SYNC);
+        assertThat(restarted.getProductsArr()).extracting(Product::id).containsExactly(1, 2);
+    }
+
+    @Test
+    void tornRecordAtTheEndIsSkipped() throws IOException {
+        Warehouse warehouse = open(ProductLog.Durability.SYNC);
+        warehouse.addProduct(new Product(1, "Hårblekning", Categories.health, 2, date, date));
+        warehouse.addProduct(new Product(2, "Knäskydd", Categories.clothes, 5, date, date));
+
+        Path segment = logSegments().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        Warehouse restarted = open(ProductLog.Durability.SYNC);
+        assertThat(restarted.getProductsArr()).extracting(Product::id).containsExactly(1);
+
+        // New writes go to a new segment and survive the next restart together with the old ones
+        restarted.addProduct(new Product(3, "Basketboll", Categories.sport, 10, date, date));
+        assertThat(open(ProductLog.Durability.SYNC).getProductsArr()).extracting(Product::id).containsExactly(1, 3);
+    }
+
+    @Test
+    void concurrentWritesAreAllDurable() throws Exception {
+        Warehouse warehouse = open(ProductLog.Durability.SYNC);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 1; i <= 400; i++) {
+            int id = i;
+            futures.add(executor.submit(() ->
+                    warehouse.addProduct(new Product(id, "Produkt " + id, Categories.sport, 5, date, date))));
+        }
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertThat(open(ProductLog.Durability.SYNC).getProductCount()).isEqualTo(400);
+    }
+
+    @Test
+    void compactingWhileWritersRunLosesNoAcknowledgedWrite() throws Exception {
+        Warehouse warehouse = open(ProductLog.Durability.SYNC);
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int writer = 0; writer < 4; writer++) {
+            int first = writer * 1_000 + 1;
+            writers.add(executor.submit(() -> {
+                for (int id = first; id < first + 1_000; id++) {
+                    warehouse.addProduct(new Product(id, "Produkt " + id, Categories.sport, 5, date, date));
+                    if (id % 3 == 0) {
+                        warehouse.modifyProduct(id, "Ändrad " + id, Categories.health, 7);
+                    }
+                }
+            }));
+        }
+        Future<?> compactor = executor.submit(() -> {
+            while (writers.stream().anyMatch(w -> !w.isDone())) {
+                warehouse.compact();
+            }
+            return null;
+        });
+        for (Future<?> writer : writers) {
+            writer.get(60, TimeUnit.SECONDS);
+        }
+        compactor.get(60, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        Warehouse restarted = open(ProductLog.Durability.SYNC);
+        assertThat(restarted.getProductsArr()).containsExactlyInAnyOrderElementsOf(warehouse.getProductsArr());
+        assertThat(restarted.getProductCount()).isEqualTo(4_000);
+    }
+
+    @Test
+    void aFailedFlushKeepsItsRecordsUntilTheyAreForced() throws Exception {
+        ProductLog log = ProductLog.open(directory, ProductLog.Durability.SYNC);
+        log.append(new Product(1, "Hårblekning", Categories.health, 2, date, date));
+        log.awaitDurable();
+
+        // The disk goes away under the log, every write fails with an IOException until it is back
+        Field channel = ProductLog.class.getDeclaredField("channel");
+        channel.setAccessible(true);
+        ((FileChannel) channel.get(log)).close();
+        log.append(new Product(2, "Knäskydd", Categories.clothes, 5, date, date));
+        assertThrows(UncheckedIOException.class, log::awaitDurable);
+        log.append(new Product(3, "Basketboll", Categories.sport, 10, date, date));
+        assertThrows(UncheckedIOException.class, log::awaitDurable);
+        assertThat(log.getSyncCount()).isEqualTo(1);
+
+        // Back again, with part of a failed write left at the end of the segment
+        Path segment = logSegments().get(0);
+        Files.write(segment, new byte[]{0, 0, 0, 42, 1, 2}, StandardOpenOption.APPEND);
+        channel.set(log, FileChannel.open(segment, StandardOpenOption.WRITE));
+        log.awaitDurable();
+        log.close();
+
+        List<Integer> replayed = new ArrayList<>();
+        ProductLog.open(directory, ProductLog.Durability.SYNC).replay(p -> replayed.add(p.id()));
+        assertThat(replayed).containsExactly(1, 2, 3);
+    }
+}
@@ -0,0 +1,121 @@
+package service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.laboration3.entities.Categories;
+import org.laboration3.entities.Product;
+import org.laboration3.service.ProductSnapshot;
+import org.laboration3.service.Warehouse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class ProductSnapshotTest {
+
+    @TempDir
+    Path directory;
+
+    private final Warehouse warehouse = new Warehouse();
+
+    private void addProducts() {
+        LocalDateTime date = LocalDateTime.of(2023, 9, 3, 10, 15, 30, 123_456_789);
+        warehouse.addProduct(new Product(1, "Hårblekning", Categories.health, 2, date, date));
+        warehouse.addProduct(new Product(7, "Knäskydd", Categories.clothes, 5, date.plusDays(1), date.plusDays(2)));
+        warehouse.addProduct(new Product(10, "🏀 Basketboll", Categories.sport, 10, date, date));
+    }
+
+    @Test
+    void restoresEveryProductAndIndex() throws IOException {
+        addProducts();
+        ProductSnapshot snapshot = new ProductSnapshot(directory.resolve("products.snapshot"));
+
+        assertEquals(3, warehouse.writeSnapshot(snapshot));
+
+        Warehouse restored = new Warehouse();
+        assertEquals(3, restored.restoreSnapshot(snapshot));
+
+        assertThat(restored.getProductsArr()).containsExactlyInAnyOrderElementsOf(warehouse.getProductsArr());
+        assertThat(restored.getProductBasedOnCategory(Categories.clothes)).extracting(Product::id).containsExactly(7);
+        assertThat(restored.getProductThatBeenModified()).extracting(Product::id).containsExactly(7);
+        assertEquals(warehouse.getMap(), restored.getMap());
+    }
+
+    @Test
+    void restoredProductsAreLoadedAsOneVersionWithoutChanges() throws IOException {
+        addProducts();
+        ProductSnapshot snapshot = new ProductSnapshot(directory.resolve("products.snapshot"));
+        warehouse.writeSnapshot(snapshot);
+
+        Warehouse restored = new Warehouse();
+        restored.restoreSnapshot(snapshot);
+
+        // The catalog and every category with products are at the last number, the feed has nothing to replay
+        assertEquals(3, restored.getCatalogVersion().number());
+        for (Categories category : new Categories[]{Categories.health, Categories.clothes, Categories.sport}) {
+            assertEquals(3, restored.getCategoryVersion(category).number());
+        }
+        for (long number = 1; number <= 3; number++) {
+            assertNull(restored.getChangeFeed().slot(number));
+        }
+
+        // A client that starts over still pages through every product, in snapshot order
+        Warehouse.Changes first = restored.getChangesSince(0, 2);
+        assertThat(first.products()).extracting(Product::id).containsExactly(1, 7);
+        Warehouse.Changes rest = restored.getChangesSince(first.upTo(), 2);
+        assertThat(rest.products()).extracting(Product::id).containsExactly(10);
+        assertEquals(3, rest.upTo());
+
+        assertThat(restored.getProductsAfterId(0, 10)).extracting(Product::id).containsExactly(1, 7, 10);
+        assertThat(restored.searchByName("bask", 0, 10)).extracting(Product::id).containsExactly(10);
+        assertThat(restored.getProductCreatedAfterDate(LocalDateTime.of(2023, 9, 3, 12, 0)))
+                .extracting(Product::id).containsExactly(7);
+    }
+
+    @Test
+    void corruptedSnapshotIsDetected() throws IOException {
+        addProducts();
+        ProductSnapshot snapshot = new ProductSnapshot(directory.resolve("products.snapshot"));
+        warehouse.writeSnapshot(snapshot);
+
+        // Flip one byte in the middle of the first product
+        try (FileChannel channel = FileChannel.open(snapshot.getFile(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer oneByte = ByteBuffer.allocate(1);
+            channel.read(oneByte, 12);
+            oneByte.flip();
+            oneByte.put(0, (byte) (oneByte.get(0) ^ 0x55));
+            channel.write(oneByte, 12);
+        }
+
+        Warehouse restored = new Warehouse();
+        assertEquals(0, restored.restoreSnapshot(snapshot));
+        assertThat(restored.getProductsArr()).isEmpty();
+
+        // Kept for inspection instead of being overwritten by the next snapshot
+        assertThat(directory.resolve("products.snapshot.corrupt")).exists();
+        assertThat(snapshot.getFile()).doesNotExist();
+    }
+
+    @Test
+    void partialSnapshotIsDetected() throws IOException {
+        addProducts();
+        ProductSnapshot snapshot = new ProductSnapshot(directory.resolve("products.snapshot"));
+        warehouse.writeSnapshot(snapshot);
+
+        byte[] bytes = Files.readAllBytes(snapshot.getFile());
+        Files.write(snapshot.getFile(), Arrays.copyOf(bytes, bytes.length - 20));
+
+        Warehouse restored = new Warehouse();
+        assertEquals(0, restored.restoreSnapshot(snapshot));
+        assertThat(restored.getProductsArr()).isEmpty();
+    }
+}
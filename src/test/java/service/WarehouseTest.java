@@ -3,13 +3,28 @@ package service;
 import org.junit.jupiter.api.Test;
 import org.laboration3.entities.Categories;
 import org.laboration3.entities.Product;
+import org.laboration3.service.CatalogStats;
+import org.laboration3.service.ProductQuery;
+import org.laboration3.service.Version;
 import org.laboration3.service.Warehouse;
 
 import java.time.LocalDateTime;
+import java.time.YearMonth;
 import java.time.temporal.ChronoUnit;
+import java.util.Comparator;
 import java.util.List;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
@@ -63,6 +78,17 @@ public class WarehouseTest {
     }
 
 
+    @Test
+    void addProducts() {
+        warehouse.addProduct(product1);
+
+        Map<Integer, String> rejected = warehouse.addProducts(List.of(product3, product2, product4, product5, product5));
+
+        // Taken id, empty name and a duplicate inside the batch are rejected by position
+        assertThat(rejected).containsOnlyKeys(1, 2, 4);
+        assertThat(warehouse.getProductsArr()).containsExactly(product1, product3, product5);
+    }
+
     @Test
     void modifyProduct() {
         warehouse.addProduct(product1);
@@ -102,6 +128,18 @@ public class WarehouseTest {
     }
 
 
+    @Test
+    void cantModifyProductWithoutCategory() {
+        warehouse.addProduct(product3);
+
+        assertThrows(IllegalArgumentException.class, () -> warehouse.modifyProduct(2, "Parfym", null, 4));
+
+        // The product is still where it was, in the list, its category and the count
+        assertThat(warehouse.getProductsArr()).containsExactly(product3);
+        assertThat(warehouse.getProductBasedOnCategory(Categories.health)).containsExactly(product3);
+        assertEquals(1, warehouse.getHowManyProductsRelatedToCategory(Categories.health));
+    }
+
     @Test
     void getProductArr() {
         warehouse.addProduct(product1);
@@ -117,6 +155,34 @@ public class WarehouseTest {
         assertTrue(productsReturned.contains(product1));
     }
 
+    @Test
+    void getProductsAfterId() {
+        warehouse.addProduct(product6);
+        warehouse.addProduct(product1);
+        warehouse.addProduct(product5);
+        warehouse.addProduct(product3);
+
+        // Pages follow id order, not insertion order
+        assertThat(warehouse.getProductsAfterId(0, 2)).containsExactly(product1, product3);
+        assertThat(warehouse.getProductsAfterId(2, 2)).containsExactly(product5, product6);
+        assertThat(warehouse.getProductsAfterId(12, 2)).isEmpty();
+        assertThat(warehouse.getProductPage(1, 2)).containsExactly(product3, product5);
+    }
+
+    @Test
+    void getProductsInIdRange() {
+        warehouse.addProduct(product6);
+        warehouse.addProduct(product1);
+        warehouse.addProduct(product5);
+        warehouse.addProduct(product3);
+
+        assertThat(warehouse.getProductsInIdRange(2, 12, 10)).containsExactly(product3, product5, product6);
+        // Limit cuts the range into chunks
+        assertThat(warehouse.getProductsInIdRange(2, 12, 2)).containsExactly(product3, product5);
+        assertThat(warehouse.getProductsInIdRange(5, 11, 10)).isEmpty();
+        assertThat(warehouse.getProductsInIdRange(4, 2, 10)).isEmpty();
+    }
+
     @Test
     void getProductBasedOnId() {
 
@@ -180,6 +246,170 @@ public class WarehouseTest {
 
     }
 
+    @Test
+    void createdAfterDateIsExactWithinASecondAndOrderedByDate() {
+        LocalDateTime date = LocalDateTime.of(2023, 9, 3, 12, 0, 0, 500_000_000);
+        // Thousands of products, every other one renamed twice
+        for (int id = 2_000; id >= 1; id--) {
+            LocalDateTime created = date.minusNanos(300_000_000).plusSeconds(id % 3);
+            warehouse.addProduct(new Product(id, "Produkt" + id, Categories.sport, 5, created, created));
+            if (id % 2 == 0) {
+                warehouse.modifyProduct(id, "Längre namn på produkt " + id, Categories.sport, 6);
+                warehouse.modifyProduct(id, "Namn" + id, Categories.health, 7);
+            }
+        }
+
+        // Same second as date but earlier within it, so id % 3 == 0 is left out
+        List<Product> createdAfter = warehouse.getProductCreatedAfterDate(date);
+        assertThat(createdAfter).extracting(Product::id).doesNotContain(3, 6, 2_000 - 2_000 % 3);
+        assertEquals(2_000 - 2_000 / 3, createdAfter.size());
+        assertThat(createdAfter).isSortedAccordingTo(Comparator.comparing(Product::createdDate).thenComparing(Product::id));
+
+        assertThat(warehouse.getProductThatBeenModified()).extracting(Product::name)
+                .hasSize(1_000)
+                .allMatch(name -> name.startsWith("Namn"));
+    }
+
+    @Test
+    void statsMatchAScanWhetherSplitOrNot() {
+        LocalDateTime start = LocalDateTime.of(2023, 1, 1, 0, 0);
+        LocalDateTime since = LocalDateTime.of(2023, 7, 1, 0, 0);
+        Warehouse split;
+        System.setProperty(Warehouse.STATS_PARALLEL_ROWS_PROPERTY, "1");
+        try {
+            split = new Warehouse();
+        } finally {
+            System.clearProperty(Warehouse.STATS_PARALLEL_ROWS_PROPERTY);
+        }
+
+        // Enough rows for several chunks, some changed before since, some after and some never
+        Random random = new Random(24);
+        Categories[] categories = Categories.values();
+        for (int id = 1; id <= 40_000; id++) {
+            LocalDateTime created = start.plusMinutes(random.nextInt(365 * 24 * 60));
+            LocalDateTime modified = random.nextInt(4) == 0 ? created.plusDays(random.nextInt(60)) : created;
+            Product product = new Product(id, "Produkt" + id, categories[random.nextInt(categories.length)],
+                    1 + random.nextInt(10), created, modified);
+            warehouse.addProduct(product);
+            split.addProduct(product);
+        }
+        for (int id = 1; id <= 40_000; id += 97) {
+            warehouse.modifyProduct(id, "Ändrad" + id, Categories.sport, 10);
+            split.modifyProduct(id, "Ändrad" + id, Categories.sport, 10);
+        }
+
+        List<Product> products = warehouse.getProductsArr();
+        for (CatalogStats stats : List.of(warehouse.getStats(since), split.getStats(since))) {
+            assertEquals(since, stats.since());
+            assertFigures(products, since, stats.total());
+            for (Categories category : categories) {
+                assertFigures(products.stream().filter(p -> p.category() == category).toList(), since,
+                        stats.categories().get(category));
+            }
+        }
+    }
+
+    @Test
+    void statsWhileWritersRunCountEveryProductOnceAndWhole() throws InterruptedException {
+        int count = 20_000;
+        Categories[] categories = Categories.values();
+        LocalDateTime date = LocalDateTime.of(2023, 9, 3, 0, 0);
+        for (int id = 0; id < count; id++) {
+            warehouse.addProduct(new Product(id, "Produkt" + id, categories[0], 1, date, date));
+        }
+
+        // Every product's rating follows its category, a row read halfway through a write would break that
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        for (int t = 0; t < 2; t++) {
+            Random random = new Random(t);
+            executor.submit(() -> {
+                for (int i = 0; i < 50_000; i++) {
+                    Categories category = categories[random.nextInt(categories.length)];
+                    warehouse.modifyProduct(random.nextInt(count), "Ändrad", category, category.ordinal() + 1);
+                }
+            });
+        }
+        executor.shutdown();
+
+        do {
+            CatalogStats stats = warehouse.getStats(date);
+            assertEquals(count, stats.total().products());
+            for (Categories category : categories) {
+                long[] ratings = stats.categories().get(category).ratings();
+                for (int rating = 1; rating <= ratings.length; rating++) {
+                    if (rating != category.ordinal() + 1) {
+                        assertEquals(0, ratings[rating - 1], category + " med betyg " + rating);
+                    }
+                }
+            }
+        } while (!executor.isTerminated());
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+    }
+
+    private static void assertFigures(List<Product> products, LocalDateTime since, CatalogStats.Figures figures) {
+        assertEquals(products.size(), figures.products());
+        assertEquals(products.stream().mapToInt(Product::rating).average().orElse(0), figures.averageRating(), 1e-9);
+        for (int rating = 1; rating <= 10; rating++) {
+            int r = rating;
+            assertEquals(products.stream().filter(p -> p.rating() == r).count(), figures.ratings()[rating - 1]);
+        }
+        assertEquals(products.stream().filter(p -> !p.createdDate().isBefore(since)).count(), figures.created());
+        assertEquals(products.stream()
+                .filter(p -> !p.createdDate().isEqual(p.lastModifiedDate()) && !p.lastModifiedDate().isBefore(since))
+                .count(), figures.modified());
+    }
+
+    @Test
+    void queriesMatchAFilteredAndSortedScanWhicheverPathIsPicked() {
+        LocalDateTime start = LocalDateTime.of(2023, 1, 1, 0, 0);
+        String[] words = {"Hatt", "Tröja", "Balsam", "Boll", "Byxor"};
+        Categories[] categories = Categories.values();
+        Random random = new Random(25);
+        for (int id = 1; id <= 5_000; id++) {
+            LocalDateTime created = start.plusMinutes(random.nextInt(365 * 24 * 60));
+            warehouse.addProduct(new Product(id, words[random.nextInt(words.length)] + " " + id,
+                    categories[random.nextInt(categories.length)], 1 + random.nextInt(10), created, created));
+        }
+        for (int id = 1; id <= 5_000; id += 7) {
+            warehouse.modifyProduct(id, "Boll " + id, Categories.sport, 1 + random.nextInt(10));
+        }
+        LocalDateTime lastWeek = start.plusDays(358);
+
+        assertQuery(ProductQuery.all().withName("tröj").sortedBy(ProductQuery.Sort.RATING).limitedTo(20),
+                p -> p.name().startsWith("Tröja"), Warehouse.AccessPath.NAME);
+        assertQuery(ProductQuery.all().withIds(100, 120).sortedBy(ProductQuery.Sort.NAME),
+                p -> p.id() >= 100 && p.id() <= 120, Warehouse.AccessPath.ID);
+        assertQuery(ProductQuery.all().withCategory(Categories.sport).limitedTo(10),
+                p -> p.category() == Categories.sport, Warehouse.AccessPath.CATEGORY);
+        assertQuery(ProductQuery.all().withRatings(10, null).sortedBy(ProductQuery.Sort.NAME).limitedTo(15),
+                p -> p.rating() == 10, Warehouse.AccessPath.SCAN);
+        assertQuery(ProductQuery.all().withCreatedAfter(lastWeek).sortedBy(ProductQuery.Sort.NAME),
+                p -> p.createdDate().isAfter(lastWeek), Warehouse.AccessPath.CREATED);
+        assertQuery(ProductQuery.all().sortedBy(ProductQuery.Sort.NEWEST).limitedTo(5),
+                p -> true, Warehouse.AccessPath.CREATED);
+        assertQuery(ProductQuery.all().withCategory(Categories.clothes).withRatings(8, 9).withCreatedAfter(start.plusMonths(6))
+                        .sortedBy(ProductQuery.Sort.NAME).limitedTo(10),
+                p -> p.category() == Categories.clothes && p.rating() >= 8 && p.rating() <= 9
+                        && p.createdDate().isAfter(start.plusMonths(6)), null);
+        assertQuery(ProductQuery.all().withName("b").withCategory(Categories.sport).withIds(2_000, 2_600),
+                p -> p.name().startsWith("B") && p.category() == Categories.sport && p.id() >= 2_000 && p.id() <= 2_600, null);
+        assertThat(warehouse.query(ProductQuery.all().withIds(10, 5)).products()).isEmpty();
+    }
+
+    private void assertQuery(ProductQuery query, Predicate<Product> matches, Warehouse.AccessPath path) {
+        Warehouse.QueryResult result = warehouse.query(query);
+        List<Product> expected = warehouse.getProductsArr().stream()
+                .filter(matches)
+                .sorted(query.sort().order())
+                .limit(query.limit())
+                .toList();
+        assertThat(expected).isNotEmpty();
+        assertEquals(expected, result.products());
+        if (path != null) {
+            assertEquals(path, result.path());
+        }
+    }
+
     @Test
     void getProductThatBeenModified() {
 
@@ -252,6 +482,143 @@ public class WarehouseTest {
 
     }
 
+    @Test
+    void getMapFollowsRenames() {
+        warehouse.addProduct(product1);
+        warehouse.addProduct(product3);
+        warehouse.addProduct(new Product(30, "\uD83C\uDFC0 Basketboll", Categories.sport, 5, LocalDateTime.now(), LocalDateTime.now()));
+
+        warehouse.modifyProduct(1, "Byxa", Categories.clothes, 5);
+
+        Map<String, Integer> map = warehouse.getMap();
+
+        // "Hatt" was renamed, so H no longer has any products
+        assertThat(map).containsOnlyKeys("B", "\uD83C\uDFC0");
+        assertEquals(2, map.get("B"));
+        assertEquals(1, map.get("\uD83C\uDFC0"));
+    }
+
+    @Test
+    void searchByNameIgnoresCaseAndDiacritics() {
+        LocalDateTime now = LocalDateTime.now();
+        warehouse.addProduct(new Product(1, "Hårblekning", Categories.health, 2, now, now));
+        warehouse.addProduct(new Product(2, "Knäskydd för hårda golv", Categories.sport, 5, now, now));
+        warehouse.addProduct(new Product(3, "Hår", Categories.health, 4, now, now));
+        warehouse.addProduct(new Product(4, "Schampo", Categories.health, 6, now, now));
+
+        // The whole word first, then the completions alphabetically
+        assertThat(warehouse.searchByName("HAR", 0, 10)).extracting(Product::id).containsExactly(3, 1, 2);
+        assertThat(warehouse.searchByName("knä hår", 0, 10)).extracting(Product::id).containsExactly(2);
+        assertThat(warehouse.searchByName("blekning", 0, 10)).isEmpty();
+        assertThat(warehouse.searchByName("  ", 0, 10)).isEmpty();
+
+        assertThat(warehouse.searchByName("hår", 1, 1)).extracting(Product::id).containsExactly(1);
+    }
+
+    @Test
+    void searchByNameFollowsRenames() {
+        warehouse.addProduct(product1);
+        warehouse.modifyProduct(1, "Mössa", Categories.clothes, 5);
+
+        assertThat(warehouse.searchByName("hatt", 0, 10)).isEmpty();
+        assertThat(warehouse.searchByName("mossa", 0, 10)).extracting(Product::id).containsExactly(1);
+    }
+
+    @Test
+    void changesSinceAVersion() {
+        warehouse.addProduct(product1);
+        warehouse.addProduct(product3);
+        long since = warehouse.getCatalogVersion().number();
+        warehouse.addProduct(product5);
+        warehouse.modifyProduct(1, "Mössa", Categories.clothes, 5);
+
+        Warehouse.Changes changes = warehouse.getChangesSince(since, 10);
+        assertThat(changes.products()).extracting(Product::id).containsExactly(4, 1);
+        assertEquals(warehouse.getCatalogVersion().number(), changes.upTo());
+        assertFalse(changes.more());
+
+        // Product 1 is only at its latest change, and the rest is fetched from where the first page ended
+        Warehouse.Changes first = warehouse.getChangesSince(0, 2);
+        assertThat(first.products()).extracting(Product::id).containsExactly(2, 4);
+        assertTrue(first.more());
+        Warehouse.Changes rest = warehouse.getChangesSince(first.upTo(), 2);
+        assertThat(rest.products()).extracting(Product::name).containsExactly("Mössa");
+        assertFalse(rest.more());
+
+        assertThat(warehouse.getChangesSince(rest.upTo(), 10).products()).isEmpty();
+    }
+
+    @Test
+    void versionsOnlyCoverChangesThatArePublished() throws InterruptedException {
+        warehouse.addProduct(product1);
+        warehouse.addProduct(product3);
+        long before = warehouse.getCatalogVersion().number();
+
+        // The slow writer gets its number first but is held inside its compute, so it publishes last
+        CountDownLatch numbered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        warehouse.getChangeFeed().addListener(() -> {
+            if (Thread.currentThread().getName().equals("långsam")) {
+                numbered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Thread slow = new Thread(() -> warehouse.modifyProduct(1, "Mössa", Categories.clothes, 6), "långsam");
+        slow.start();
+        assertTrue(numbered.await(5, TimeUnit.SECONDS));
+        warehouse.modifyProduct(2, "Schampo", Categories.health, 4);
+
+        // The later change is in the store, but no version may claim it while the earlier one isn't
+        assertEquals(before, warehouse.getCatalogVersion().number());
+        assertEquals(before, warehouse.getCategoryVersion(Categories.health).number());
+        assertThat(warehouse.getChangesSince(before, 10).products()).isEmpty();
+
+        release.countDown();
+        slow.join(5_000);
+        long after = warehouse.getCatalogVersion().number();
+        assertEquals(before + 2, after);
+        assertEquals(after, warehouse.getCategoryVersion(Categories.clothes).number());
+        assertEquals(after, warehouse.getCategoryVersion(Categories.health).number());
+        assertThat(warehouse.getChangesSince(before, 10).products()).extracting(Product::name)
+                .containsExactly("Mössa", "Schampo");
+    }
+
+    @Test
+    void followingChangesWhileWritersRunSeesEveryProduct() throws InterruptedException {
+        int writers = 4;
+        int perWriter = 5_000;
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        for (int t = 0; t < writers; t++) {
+            int first = t * perWriter;
+            executor.submit(() -> {
+                for (int id = first; id < first + perWriter; id++) {
+                    LocalDateTime created = LocalDateTime.now();
+                    warehouse.addProduct(new Product(id, "Produkt" + id, Categories.sport, 5, created, created));
+                }
+            });
+        }
+        executor.shutdown();
+
+        // A follower only ever asks for what came after the upTo it was handed, nothing is fetched twice
+        Set<Integer> seen = new HashSet<>();
+        long since = 0;
+        boolean done = false;
+        while (!done) {
+            done = executor.isTerminated();
+            Warehouse.Changes changes = warehouse.getChangesSince(since, 1000);
+            changes.products().forEach(p -> seen.add(p.id()));
+            since = changes.upTo();
+            done &= !changes.more();
+        }
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertEquals(writers * perWriter, seen.size());
+    }
+
     @Test
     void recentMaxRatingDontExist() {
 
@@ -278,9 +645,206 @@ public class WarehouseTest {
         assertTrue(recentMaxRating.contains(product1) && recentMaxRating.contains(product2));
 
     }
-}
 
+    @Test
+    void recentMaxRatingIgnoresSameMonthLastYear() {
+        LocalDateTime lastYear = LocalDateTime.now().minusYears(1);
+        warehouse.addProduct(new Product(1, "Smink", Categories.health, 10, lastYear, lastYear));
+
+        assertThrows(NoSuchElementException.class, () -> warehouse.getRecentMaxRating());
+    }
+
+    @Test
+    void getTopRated() {
+        LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+        LocalDateTime lastMonth = now.minusMonths(1);
+
+        Product older = new Product(1, "Smink", Categories.health, 9, lastMonth, lastMonth);
+        Product newer = new Product(2, "Wax", Categories.health, 9, now, now);
+        Product best = new Product(3, "Parfym", Categories.health, 10, lastMonth, lastMonth);
+        Product worst = new Product(4, "Deo", Categories.health, 2, now, now);
+        warehouse.addProduct(older);
+        warehouse.addProduct(newer);
+        warehouse.addProduct(best);
+        warehouse.addProduct(worst);
+
+        YearMonth thisMonth = YearMonth.now();
+
+        // Rating first, then the most recently created
+        assertThat(warehouse.getTopRated(thisMonth.minusMonths(1), thisMonth, 3)).containsExactly(best, newer, older);
+        assertThat(warehouse.getTopRated(thisMonth, thisMonth, 5)).containsExactly(newer, worst);
+
+        warehouse.modifyProduct(4, "Deo", Categories.health, 10);
+        assertThat(warehouse.getTopRated(thisMonth, thisMonth, 1)).extracting(Product::id).containsExactly(4);
+    }
+
+    @Test
+    void versionsFollowChanges() {
+        warehouse.addProduct(product1);
+        warehouse.addProduct(product3);
+        Version catalog = warehouse.getCatalogVersion();
+        Version clothes = warehouse.getCategoryVersion(Categories.clothes);
+        Version sport = warehouse.getCategoryVersion(Categories.sport);
+        Version health = warehouse.getCategoryVersion(Categories.health);
+
+        assertNull(warehouse.getProductVersion(99));
+
+        // Moving a product changes both categories it touches, but not the others
+        warehouse.modifyProduct(1, "Hatt", Categories.sport, 5);
+        assertTrue(warehouse.getCatalogVersion().number() > catalog.number());
+        assertTrue(warehouse.getCategoryVersion(Categories.clothes).number() > clothes.number());
+        assertTrue(warehouse.getCategoryVersion(Categories.sport).number() > sport.number());
+        assertEquals(health, warehouse.getCategoryVersion(Categories.health));
+        assertEquals(warehouse.getCatalogVersion().number(), warehouse.getProductVersion(1).number());
+
+        // Versions from another warehouse instance never look the same
+        assertNotEquals(catalog.generation(), new Warehouse().getCatalogVersion().generation());
+    }
+
+    @Test
+    void modifyProductWithStaleVersionIsRejected() {
+        warehouse.addProduct(product1);
+        Version read = warehouse.getProductVersion(1);
+
+        Version changed = warehouse.modifyProduct(1, read, "Mössa", Categories.clothes, 6);
+        assertEquals(changed, warehouse.getProductVersion(1));
+
+        // A second writer that read the same version loses instead of overwriting the first change
+        assertThrows(ConcurrentModificationException.class,
+                () -> warehouse.modifyProduct(1, read, "Keps", Categories.clothes, 2));
+        assertEquals("Mössa", warehouse.getProductBasedOnId(1).get(0).name());
+        assertNull(warehouse.modifyProduct(99, read, "Keps", Categories.clothes, 2));
+    }
+
+    @Test
+    void concurrentCompareAndSetLosesNoUpdates() throws InterruptedException {
+        warehouse.addProduct(product1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        AtomicInteger succeeded = new AtomicInteger();
+
+        // Every writer retries with a fresh version until its increment of the rating lands
+        for (int i = 0; i < 4; i++) {
+            executor.submit(() -> {
+                while (true) {
+                    Version version = warehouse.getProductVersion(1);
+                    Product current = warehouse.getProductBasedOnId(1).get(0);
+                    try {
+                        warehouse.modifyProduct(1, version, current.name(), current.category(), current.rating() + 1);
+                        succeeded.incrementAndGet();
+                        return;
+                    } catch (ConcurrentModificationException e) {
+                        // Someone else was first, read again
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(4, succeeded.get());
+        assertEquals(product1.rating() + 4, warehouse.getProductBasedOnId(1).get(0).rating());
+    }
+
+    @Test
+    void aVersionIsNeverVisibleBeforeItsProduct() throws InterruptedException {
+        int count = 20_000;
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        AtomicInteger ahead = new AtomicInteger();
+
+        executor.submit(() -> {
+            for (int id = 0; id < count; id++) {
+                LocalDateTime created = LocalDateTime.now();
+                warehouse.addProduct(new Product(id, "Produkt" + id, Categories.sport, 5, created, created));
+            }
+        });
+        // Whoever got a version must find the product, or the ETag would go out with an older body
+        executor.submit(() -> {
+            for (int id = 0; id < count; id++) {
+                while (warehouse.getProductVersion(id) == null) {
+                    Thread.onSpinWait();
+                }
+                if (warehouse.getProductBasedOnId(id).isEmpty()) {
+                    ahead.incrementAndGet();
+                }
+            }
+        });
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
 
+        assertEquals(0, ahead.get());
+    }
 
+    @Test
+    void indexesMatchScanAfterRandomMutations() {
+        Random random = new Random(42);
+        LocalDateTime date = LocalDateTime.of(2023, 9, 3, 0, 0);
 
+        for (int i = 0; i < 2_000; i++) {
+            randomMutation(random, date);
+        }
 
+        assertIndexesMatchScan(date);
+    }
+
+    @Test
+    void indexesMatchScanAfterConcurrentMutations() throws InterruptedException {
+        LocalDateTime date = LocalDateTime.of(2023, 9, 3, 0, 0);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        for (int t = 0; t < 4; t++) {
+            Random random = new Random(t);
+            executor.submit(() -> {
+                for (int i = 0; i < 2_000; i++) {
+                    randomMutation(random, date);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertIndexesMatchScan(date);
+    }
+
+    private void randomMutation(Random random, LocalDateTime date) {
+        int id = random.nextInt(300);
+        Categories category = Categories.values()[random.nextInt(Categories.values().length)];
+        int rating = 1 + random.nextInt(10);
+
+        if (random.nextBoolean()) {
+            try {
+                LocalDateTime created = date.plusHours(random.nextInt(100));
+                warehouse.addProduct(new Product(id, "Produkt" + id, category, rating, created, created));
+            } catch (IllegalArgumentException e) {
+                // id already taken, same as the scan would have decided
+            }
+        } else {
+            warehouse.modifyProduct(id, "Ändrad" + id, category, rating);
+        }
+    }
+
+    private void assertIndexesMatchScan(LocalDateTime date) {
+        List<Product> all = warehouse.getProductsArr();
+
+        for (Categories category : Categories.values()) {
+            List<Product> inCategory = all.stream().filter(p -> p.category() == category).toList();
+
+            assertThat(warehouse.getProductBasedOnCategory(category)).containsExactlyInAnyOrderElementsOf(inCategory);
+            assertEquals(inCategory.size(), warehouse.getHowManyProductsRelatedToCategory(category));
+            assertEquals(!inCategory.isEmpty(), warehouse.getCategoriesWithProducts().contains(category));
+        }
+
+        LocalDateTime after = date.plusHours(50);
+        assertThat(warehouse.getProductCreatedAfterDate(after))
+                .containsExactlyInAnyOrderElementsOf(all.stream().filter(p -> p.createdDate().isAfter(after)).toList());
+
+        assertThat(warehouse.getProductThatBeenModified())
+                .containsExactlyInAnyOrderElementsOf(all.stream()
+                        .filter(p -> !p.createdDate().isEqual(p.lastModifiedDate())).toList());
+
+        assertEquals(all.stream().collect(Collectors.groupingBy(p -> p.name().substring(0, 1), Collectors.summingInt(p -> 1))),
+                warehouse.getMap());
+
+        assertThat(warehouse.searchByName("andrad", 0, all.size()))
+                .containsExactlyInAnyOrderElementsOf(all.stream().filter(p -> p.name().startsWith("Ändrad")).toList());
+    }
+}